@@ -0,0 +1,131 @@
+package com.outlyer.jmx.jmxquery.benchmarks;
+
+import com.outlyer.jmx.jmxquery.JMXConnector;
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.JSONWriter;
+import com.outlyer.jmx.jmxquery.MetricWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures a full collection against an in-process MBean server holding
+ * thousands of MBeans with composite attributes: expanding the wildcard
+ * query, reading and expanding the attributes, and writing the result as
+ * JSON. The MBean server is used directly so no time is spent in RMI.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConnectorBenchmark {
+
+    @Param({"1000", "5000"})
+    public int beans;
+
+    private JMXConnector connector;
+    private ArrayList<JMXMetric> composite;
+    private ArrayList<JMXMetric> named;
+
+    @Setup
+    public void setup() throws Exception {
+        // Not registered with the factory so it is simply garbage collected
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        for (int i = 0; i < beans; i++) {
+            server.registerMBean(new Pool(i), new ObjectName("bench:type=Pool,name=pool" + i));
+        }
+        connector = new JMXConnector(server);
+
+        composite = new ArrayList<JMXMetric>();
+        composite.add(new JMXMetric("bench:type=Pool,*/Usage"));
+        composite.add(new JMXMetric("bench:type=Pool,*/Count"));
+
+        named = new ArrayList<JMXMetric>();
+        named.add(new JMXMetric("bench_pool_{attributeKey}<name={name}>==bench:type=Pool,*/Usage"));
+        named.add(new JMXMetric("bench_pool_count[counter]<name={name}>==bench:type=Pool,*/Count"));
+    }
+
+    @Benchmark
+    public void getMetrics(final Blackhole blackhole) throws Exception {
+        connector.getMetrics(composite, new MetricWriter() {
+            public void begin() {
+            }
+
+            public void write(JMXMetric metric) {
+                blackhole.consume(metric);
+            }
+
+            public void end() {
+            }
+        });
+    }
+
+    @Benchmark
+    public void getMetricsJSON(Blackhole blackhole) throws Exception {
+        JSONWriter writer = new JSONWriter(new NullWriter(), false);
+        connector.getMetrics(named, writer);
+        blackhole.consume(writer.getCount());
+    }
+
+    public interface PoolMXBean {
+
+        MemoryUsage getUsage();
+
+        long getCount();
+    }
+
+    public static class Pool implements PoolMXBean {
+
+        private final MemoryUsage usage;
+        private long count;
+
+        Pool(int i) {
+            usage = new MemoryUsage(i, i * 2L, i * 3L, i * 4L);
+        }
+
+        public MemoryUsage getUsage() {
+            return usage;
+        }
+
+        public long getCount() {
+            return count++;
+        }
+    }
+
+    /**
+     * Throws away what is written so only the serialization is measured
+     */
+    private static class NullWriter extends Writer {
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+        }
+
+        @Override
+        public void write(String text) throws IOException {
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.outlyer.jmx.jmxquery.benchmarks;
+
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.ParseError;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per metric work done on the client: parsing queries, replacing
+ * the tokens in metric names and labels and writing metrics out as JSON
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MetricBenchmark {
+
+    private static final String QUERY = 
+            "jvm_memory_pool_{attributeKey}<name={name},type={type}>==java.lang:type=MemoryPool,name=*/Usage/*";
+
+    private JMXMetric query;
+    private JMXMetric result;
+
+    @Setup
+    public void setup() throws ParseError {
+        query = new JMXMetric(QUERY);
+        result = resolve();
+        result.replaceTokens();
+    }
+
+    @Benchmark
+    public JMXMetric parse() throws ParseError {
+        return new JMXMetric(QUERY);
+    }
+
+    @Benchmark
+    public JMXMetric replaceTokens() {
+        // A new result each time as replacing the tokens changes the metric
+        JMXMetric metric = resolve();
+        metric.replaceTokens();
+        return metric;
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return result.toJSON();
+    }
+
+    /**
+     * @return  A metric as found by the query, before its tokens are replaced
+     */
+    private JMXMetric resolve() {
+        JMXMetric metric = query.newResult(null, "java.lang:type=MemoryPool,name=\"PS Eden Space\"", 
+                "Usage", "used");
+        metric.setValue(Long.valueOf(123456789L));
+        return metric;
+    }
+}
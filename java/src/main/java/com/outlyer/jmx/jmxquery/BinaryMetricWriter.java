@@ -0,0 +1,189 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes metrics in a compact binary format for programs reading the output,
+ * avoiding the cost of writing and parsing the same names as JSON text over
+ * and over. All numbers are big-endian.
+ *
+ * The output starts with the bytes "JMXQ" and a version byte, followed by
+ * records. Each record is a type byte, the payload length as a 4 byte 
+ * unsigned int, then the payload:
+ *
+ *  1 (string)  UTF-8 text, added to the string table. Strings are numbered
+ *              from 0 in the order they are written and written once before
+ *              the first metric that uses them.
+ *  2 (metric)  The string numbers, -1 for null, as 4 byte ints of the 
+ *              metricName, then a 2 byte label count and the key and value
+ *              of each label, then mBeanName, attribute, attributeKey and 
+ *              attributeType. Then a value type byte and the value: 0 for no
+ *              value, 1 for an 8 byte int, 2 for an 8 byte double, 3 for a 
+ *              boolean byte, 4 for UTF-8 text taking up the rest of the payload,
+ *              5 for a query that failed with the UTF-8 error message taking 
+ *              up the rest of the payload.
+ *  3 (end)     Empty, written after the last metric.
+ *  4 (error)   The error type and message as UTF-8 text, i.e. 
+ *              "query-connection-error: Connection refused", written in place 
+ *              of the rest of the metrics when the query fails part way 
+ *              through and followed by the end record.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class BinaryMetricWriter implements MetricWriter {
+
+    /**
+     * Format version written after the magic bytes
+     */
+    public static final int VERSION = 1;
+
+    static final int STRING = 1;
+    static final int METRIC = 2;
+    static final int END = 3;
+    static final int ERROR = 4;
+
+    static final int VALUE_NONE = 0;
+    static final int VALUE_LONG = 1;
+    static final int VALUE_DOUBLE = 2;
+    static final int VALUE_BOOLEAN = 3;
+    static final int VALUE_STRING = 4;
+    static final int VALUE_ERROR = 5;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(buffer);
+    private int count = 0;
+    private boolean open = false;
+
+    /**
+     * @param out   Where to write the metrics, should be buffered
+     */
+    public BinaryMetricWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    public void begin() throws IOException {
+        strings.clear();
+        count = 0;
+        open = true;
+        out.writeBytes("JMXQ");
+        out.writeByte(VERSION);
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+        metric.replaceTokens();
+
+        // Strings are looked up first so their records come before the metric
+        int metricName = string(metric.getmetricName());
+        int[] labels = new int[metric.getmetricLabels().size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> label : metric.getmetricLabels().entrySet()) {
+            labels[i++] = string(label.getKey());
+            labels[i++] = string(label.getValue());
+        }
+        int mBeanName = string(metric.getmBeanName());
+        int attribute = string(metric.getAttribute());
+        int attributeKey = string(metric.getAttributeKey());
+        int attributeType = string(metric.getAttributeType());
+
+        buffer.reset();
+        record.writeInt(metricName);
+        record.writeShort(labels.length / 2);
+        for (int label : labels) {
+            record.writeInt(label);
+        }
+        record.writeInt(mBeanName);
+        record.writeInt(attribute);
+        record.writeInt(attributeKey);
+        record.writeInt(attributeType);
+
+        Object value = metric.getValue();
+        if (metric.getError() != null) {
+            record.writeByte(VALUE_ERROR);
+            record.write(metric.getError().getBytes("UTF-8"));
+        } else if (value == null) {
+            record.writeByte(VALUE_NONE);
+        } else if (value instanceof Long || value instanceof Integer 
+                || value instanceof Short || value instanceof Byte) {
+            record.writeByte(VALUE_LONG);
+            record.writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            record.writeByte(VALUE_DOUBLE);
+            record.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            record.writeByte(VALUE_BOOLEAN);
+            record.writeBoolean((Boolean) value);
+        } else {
+            record.writeByte(VALUE_STRING);
+            record.write(value.toString().getBytes("UTF-8"));
+        }
+        writeRecord(METRIC);
+        count++;
+    }
+
+    public void end() throws IOException {
+        buffer.reset();
+        writeRecord(END);
+        out.flush();
+        open = false;
+    }
+
+    /**
+     * Ends the output with an error record so readers can tell a failed query
+     * from a truncated one, starting the output first if nothing's been written
+     *
+     * @param error     The error type, i.e. query-connection-error
+     * @param message   The error message
+     * @throws IOException
+     */
+    public void fail(String error, String message) throws IOException {
+        if (!open) {
+            begin();
+        }
+        buffer.reset();
+        record.write((error + ": " + message).getBytes("UTF-8"));
+        writeRecord(ERROR);
+        end();
+    }
+
+    /**
+     * @return  The number of metrics written
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the number of a string, writing it to the string table if it's new
+     *
+     * @param value     The string, can be null
+     * @return          The string number, -1 for null
+     */
+    private int string(String value) throws IOException {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = strings.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.put(value, index);
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        return index;
+    }
+
+    private void writeRecord(int type) throws IOException {
+        out.writeByte(type);
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+}
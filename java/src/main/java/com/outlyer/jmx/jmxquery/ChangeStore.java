@@ -0,0 +1,86 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a 64 bit hash of the last value written for each series so a
+ * ChangeWriter can leave out values that haven't changed, and counts the 
+ * polls of each scope so every Nth poll can be written in full as a keyframe.
+ * Series are held in a SeriesTable like CounterStore's.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class ChangeStore extends SeriesTable {
+
+    /**
+     * Default number of polls between full keyframes
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+
+    private final int keyframeInterval;
+    private final Map<String, Integer> polls = new HashMap<String, Integer>();
+    private long[] hashes;
+
+    /**
+     * @param keyframeInterval  Number of polls between polls written in full, 1 writes every poll in full
+     * @param maxAge            Milliseconds a series can go unseen before it can be dropped
+     */
+    public ChangeStore(int keyframeInterval, long maxAge) {
+        super(maxAge);
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        clear();
+    }
+
+    /**
+     * Counts a poll of a scope
+     *
+     * @param scope     Identifies what is polled, i.e. a url or schedule group
+     * @return          true if the poll is a keyframe, the first poll and every Nth poll after it
+     */
+    public synchronized boolean poll(String scope) {
+        Integer count = polls.get(scope);
+        int next = (count == null) ? 0 : count + 1;
+        if (next >= keyframeInterval) {
+            next = 0;
+        }
+        polls.put(scope, next);
+        return next == 0;
+    }
+
+    /**
+     * Records the hash of a series' value
+     *
+     * @param series    The series hash
+     * @param hash      The hash of the value
+     * @param time      The time the value was read in milliseconds
+     * @return          true if the series is new or its value changed
+     */
+    public synchronized boolean update(long series, long hash, long time) {
+        int slot = slot(series, time);
+        if (slot < 0) {
+            hashes[-(slot + 1)] = hash;
+            return true;
+        }
+        boolean changed = hashes[slot] != hash;
+        hashes[slot] = hash;
+        return changed;
+    }
+
+    /**
+     * @return  The number of polls between keyframes
+     */
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    void moved(int capacity, int[] moves) {
+        long[] oldHashes = hashes;
+        hashes = new long[capacity];
+        for (int i = 0; i < moves.length; i++) {
+            if (moves[i] >= 0) {
+                hashes[moves[i]] = oldHashes[i];
+            }
+        }
+    }
+}
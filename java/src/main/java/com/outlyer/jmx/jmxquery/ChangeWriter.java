@@ -0,0 +1,77 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Only passes on metrics whose value has changed since it was last written,
+ * so values that never change, i.e. MaxFileDescriptorCount, aren't written 
+ * on every poll. The first poll of a scope and every Nth poll after it is a 
+ * keyframe and passes on every metric, so consumers can recover from missed 
+ * output and see series that have gone.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class ChangeWriter implements MetricWriter {
+
+    private final MetricWriter writer;
+    private final ChangeStore store;
+    private final String scope;
+    private boolean keyframe = true;
+
+    /**
+     * @param writer    The writer to pass the changed metrics on to
+     * @param store     The store keeping the last value written for each series
+     * @param scope     Identifies what is polled, i.e. its url, so the same MBean on
+     *                  different JVMs are kept apart
+     */
+    public ChangeWriter(MetricWriter writer, ChangeStore store, String scope) {
+        this.writer = writer;
+        this.store = store;
+        this.scope = scope;
+    }
+
+    public void begin() throws IOException {
+        keyframe = store.poll(scope);
+        writer.begin();
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+        boolean changed = store.update(CounterStore.series(scope, metric), hash(metric.getValue()), 
+                System.currentTimeMillis());
+        if (changed || keyframe || metric.getError() != null) {
+            writer.write(metric);
+        }
+    }
+
+    public void end() throws IOException {
+        writer.end();
+    }
+
+    /**
+     * @return  true if the current poll is a keyframe with every metric written
+     */
+    public boolean isKeyframe() {
+        return keyframe;
+    }
+
+    /**
+     * @param value     The metric value
+     * @return          A 64 bit hash of the value
+     */
+    static long hash(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            return Double.doubleToLongBits(((Number) value).doubleValue());
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte || value instanceof AtomicLong || value instanceof AtomicInteger) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        }
+        // Other numbers, i.e. BigDecimal, would lose their fraction or high bits as a long
+        return CounterStore.hash(String.valueOf(value));
+    }
+}
@@ -0,0 +1,117 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the work done by all the connections in this process, so a slow or
+ * failing collector can be seen with the same tools it collects for. The
+ * stats are registered as an MBean in the platform MBean server under
+ * OBJECT_NAME, and JMXConnectors with self metrics on write the stats for
+ * each scrape after the metrics collected.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class CollectorStats implements CollectorStatsMBean {
+
+    /**
+     * Name the stats are registered under, also the mBeanName of self metrics
+     */
+    public static final String OBJECT_NAME = "com.outlyer.jmxquery:type=Collector";
+
+    private static final CollectorStats INSTANCE = new CollectorStats();
+
+    private final AtomicLong scrapes = new AtomicLong();
+    private final AtomicLong scrapeErrors = new AtomicLong();
+    private final AtomicLong totalScrapeNanos = new AtomicLong();
+    private final AtomicLong mbeansMatched = new AtomicLong();
+    private final AtomicLong attributesRead = new AtomicLong();
+    private final AtomicLong nullValues = new AtomicLong();
+    private final AtomicLong connectionErrors = new AtomicLong();
+    private volatile long lastScrapeNanos = 0;
+
+    CollectorStats() {
+    }
+
+    /**
+     * @return  The stats for this process
+     */
+    public static CollectorStats get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register the stats in the platform MBean server if they aren't already
+     *
+     * @throws JMException  If the MBean can't be registered
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered
+        }
+    }
+
+    /**
+     * Record a finished scrape
+     *
+     * @param nanos         Time the scrape took
+     * @param mbeans        MBeans matched by its queries
+     * @param attributes    Attributes it read
+     * @param nulls         Values it wrote as Null
+     * @param failed        Whether the scrape threw an exception
+     */
+    void scrape(long nanos, long mbeans, long attributes, long nulls, boolean failed) {
+        scrapes.incrementAndGet();
+        if (failed) {
+            scrapeErrors.incrementAndGet();
+        }
+        totalScrapeNanos.addAndGet(nanos);
+        lastScrapeNanos = nanos;
+        mbeansMatched.addAndGet(mbeans);
+        attributesRead.addAndGet(attributes);
+        nullValues.addAndGet(nulls);
+    }
+
+    void connectionError() {
+        connectionErrors.incrementAndGet();
+    }
+
+    public long getScrapes() {
+        return scrapes.get();
+    }
+
+    public long getScrapeErrors() {
+        return scrapeErrors.get();
+    }
+
+    public double getLastScrapeSeconds() {
+        return lastScrapeNanos / 1e9;
+    }
+
+    public double getTotalScrapeSeconds() {
+        return totalScrapeNanos.get() / 1e9;
+    }
+
+    public long getMBeansMatched() {
+        return mbeansMatched.get();
+    }
+
+    public long getAttributesRead() {
+        return attributesRead.get();
+    }
+
+    public long getNullValues() {
+        return nullValues.get();
+    }
+
+    public long getConnectionErrors() {
+        return connectionErrors.get();
+    }
+}
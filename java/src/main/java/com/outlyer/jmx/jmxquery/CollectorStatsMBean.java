@@ -0,0 +1,49 @@
+package com.outlyer.jmx.jmxquery;
+
+/**
+ * Management interface for the collector's own stats, see CollectorStats
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public interface CollectorStatsMBean {
+
+    /**
+     * @return  Number of scrapes run
+     */
+    long getScrapes();
+
+    /**
+     * @return  Number of scrapes that failed
+     */
+    long getScrapeErrors();
+
+    /**
+     * @return  Seconds taken by the last scrape
+     */
+    double getLastScrapeSeconds();
+
+    /**
+     * @return  Seconds taken by all scrapes
+     */
+    double getTotalScrapeSeconds();
+
+    /**
+     * @return  Number of MBeans matched by queries
+     */
+    long getMBeansMatched();
+
+    /**
+     * @return  Number of attributes read
+     */
+    long getAttributesRead();
+
+    /**
+     * @return  Number of values written as Null because they couldn't be read
+     */
+    long getNullValues();
+
+    /**
+     * @return  Number of failed connections and queries that failed on a broken connection
+     */
+    long getConnectionErrors();
+}
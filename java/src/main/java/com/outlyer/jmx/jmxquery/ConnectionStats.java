@@ -0,0 +1,225 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts the calls a JMXConnector makes to the MBean server for each query,
+ * with their errors and a histogram of their latency, so the queries that
+ * are expensive to run can be found. Calls made outside a query, such as
+ * listening for MBean registrations, are counted under CONNECTION.
+ *
+ * Latencies are kept in power of two buckets of microseconds, so percentiles
+ * are given as the upper bound of the bucket they fall in.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class ConnectionStats {
+
+    /**
+     * Query name calls made outside a query are counted under
+     */
+    public static final String CONNECTION = "(connection)";
+
+    private static final int BUCKETS = 32;
+
+    private final ThreadLocal<String> current = new ThreadLocal<String>();
+    private final Map<String, QueryStats> queries = new LinkedHashMap<String, QueryStats>();
+
+    /**
+     * Count calls made by this thread against a query until it's cleared
+     *
+     * @param query     The query being run, null to clear it
+     */
+    void setQuery(String query) {
+        if (query == null) {
+            current.remove();
+        } else {
+            current.set(query);
+        }
+    }
+
+    /**
+     * Record a call to the MBean server against the query the calling thread is running
+     *
+     * @param method    The MBeanServerConnection method called
+     * @param nanos     How long the call took
+     * @param failed    Whether the call threw an exception
+     */
+    synchronized void recordCall(String method, long nanos, boolean failed) {
+        String query = current.get();
+        get(query != null ? query : CONNECTION).call(method).record(nanos, failed);
+    }
+
+    /**
+     * Record a query having been run
+     *
+     * @param query     The query
+     * @param nanos     How long it took to run, including writing the results
+     */
+    synchronized void recordQuery(String query, long nanos) {
+        QueryStats stats = get(query);
+        stats.runs++;
+        stats.nanos += nanos;
+    }
+
+    /**
+     * @return  The queries with stats, in the order they were first run
+     */
+    public synchronized Set<String> getQueries() {
+        return Collections.unmodifiableSet(queries.keySet());
+    }
+
+    /**
+     * @param query     The query
+     * @return          The stats for the query, null if it hasn't been run
+     */
+    public synchronized QueryStats getQuery(String query) {
+        return queries.get(query);
+    }
+
+    /**
+     * Print a summary of each query and the calls it made
+     *
+     * @param out   Stream to print to
+     */
+    public synchronized void print(PrintStream out) {
+        for (Map.Entry<String, QueryStats> entry : queries.entrySet()) {
+            QueryStats query = entry.getValue();
+            if (entry.getKey().equals(CONNECTION)) {
+                out.println(CONNECTION);
+            } else {
+                out.println(entry.getKey() + ": " + millis(query.nanos) + " over " + query.runs 
+                        + (query.runs == 1 ? " run" : " runs"));
+            }
+            for (Map.Entry<String, CallStats> call : query.calls.entrySet()) {
+                CallStats stats = call.getValue();
+                out.println("    " + call.getKey() + ": " + stats.calls + " calls, " + stats.errors + " errors, "
+                        + "avg " + millis(stats.calls > 0 ? stats.nanos / stats.calls : 0) 
+                        + ", p50 <" + millis(stats.getPercentile(0.5))
+                        + ", p99 <" + millis(stats.getPercentile(0.99))
+                        + ", max " + millis(stats.max));
+            }
+        }
+    }
+
+    private QueryStats get(String query) {
+        QueryStats stats = queries.get(query);
+        if (stats == null) {
+            stats = new QueryStats();
+            queries.put(query, stats);
+        }
+        return stats;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1000000.0);
+    }
+
+    /**
+     * The runs of a query and the calls they made
+     */
+    public static class QueryStats {
+
+        private final Map<String, CallStats> calls = new LinkedHashMap<String, CallStats>();
+        private int runs = 0;
+        private long nanos = 0;
+
+        /**
+         * @return  Number of times the query was run
+         */
+        public int getRuns() {
+            return runs;
+        }
+
+        /**
+         * @return  Total time taken by the query runs
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @param method    The MBeanServerConnection method, i.e. getAttributes
+         * @return          The stats for calls to the method, null if none were made
+         */
+        public CallStats getCalls(String method) {
+            return calls.get(method);
+        }
+
+        private CallStats call(String method) {
+            CallStats stats = calls.get(method);
+            if (stats == null) {
+                stats = new CallStats();
+                calls.put(method, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Calls made to one MBeanServerConnection method
+     */
+    public static class CallStats {
+
+        private final long[] buckets = new long[BUCKETS];
+        private long calls = 0;
+        private long errors = 0;
+        private long nanos = 0;
+        private long max = 0;
+
+        void record(long nanos, boolean failed) {
+            calls++;
+            if (failed) {
+                errors++;
+            }
+            this.nanos += nanos;
+            max = Math.max(max, nanos);
+            // Bucket b holds calls under 2^b microseconds
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            buckets[Math.min(bucket, BUCKETS - 1)]++;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return  Total time spent in the calls
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return  Time taken by the slowest call
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param fraction  The percentile wanted, i.e. 0.99
+         * @return          Nanoseconds the given fraction of calls took less than, 
+         *                  to the next power of two microseconds
+         */
+        public long getPercentile(double fraction) {
+            long wanted = (long) Math.ceil(calls * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= wanted && seen > 0) {
+                    return (1L << bucket) * 1000;
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.outlyer.jmx.jmxquery;
+
+/**
+ * Keeps the last value and time seen for each counter series so rates and
+ * deltas can be worked out between polls. Series are held in a SeriesTable,
+ * so a store with tens of thousands of series doesn't create an object per
+ * series or per poll.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class CounterStore extends SeriesTable {
+
+    /**
+     * Default time a series can go unseen before it's forgotten
+     */
+    public static final long DEFAULT_MAX_AGE = 60 * 60 * 1000;
+
+    private long[] times;
+    private double[] values;
+
+    /**
+     * @param maxAge    Milliseconds a series can go unseen before it can be dropped
+     */
+    public CounterStore(long maxAge) {
+        super(maxAge);
+        clear();
+    }
+
+    /**
+     * Records a new value for a series and returns the one it replaces
+     *
+     * @param series    The series hash
+     * @param value     The new value
+     * @param time      The time the value was read in milliseconds
+     * @param previous  Set to the previous value and time if there was one
+     * @return          true if there was a previous value for the series
+     */
+    public synchronized boolean update(long series, double value, long time, Sample previous) {
+        int slot = slot(series, time);
+        if (slot < 0) {
+            slot = -(slot + 1);
+            values[slot] = value;
+            times[slot] = time;
+            return false;
+        }
+        previous.value = values[slot];
+        previous.time = times[slot];
+        values[slot] = value;
+        times[slot] = time;
+        return true;
+    }
+
+    void moved(int capacity, int[] moves) {
+        long[] oldTimes = times;
+        double[] oldValues = values;
+        times = new long[capacity];
+        values = new double[capacity];
+        for (int i = 0; i < moves.length; i++) {
+            if (moves[i] >= 0) {
+                times[moves[i]] = oldTimes[i];
+                values[moves[i]] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @param scope     Identifies the JVM the metric was read from, i.e. its url
+     * @param metric    The metric read
+     * @return          The hash identifying the metric's series
+     */
+    public static long series(String scope, JMXMetric metric) {
+        return hash(scope, metric.getmBeanName(), metric.getAttribute(), metric.getAttributeKey());
+    }
+
+    /**
+     * Hashes the parts identifying a series with 64 bit FNV-1a
+     *
+     * @param parts     The strings identifying the series, nulls allowed
+     * @return          The series hash
+     */
+    public static long hash(String... parts) {
+        long hash = 0xcbf29ce484222325L;
+        for (String part : parts) {
+            if (part != null) {
+                for (int i = 0; i < part.length(); i++) {
+                    char c = part.charAt(i);
+                    hash = (hash ^ (c & 0xFF)) * 0x100000001b3L;
+                    hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+                }
+            }
+            // Separator so ("ab", "c") and ("a", "bc") differ
+            hash = (hash ^ 0xFF) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * A previous value of a series, reused between updates
+     */
+    public static class Sample {
+
+        private double value;
+        private long time;
+
+        public double getValue() {
+            return value;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+}
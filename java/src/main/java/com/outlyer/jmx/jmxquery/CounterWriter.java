@@ -0,0 +1,60 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+
+/**
+ * Works out the change and per second rate of counter metrics since the last
+ * poll before passing metrics on to another writer. Metrics the query marked
+ * as counters get a delta and rate once a previous value has been seen. If a
+ * counter goes down it's taken to have been reset, i.e. the JVM restarted, and
+ * the new value is used as the delta.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class CounterWriter implements MetricWriter {
+
+    private final MetricWriter writer;
+    private final CounterStore store;
+    private final String scope;
+    private final CounterStore.Sample previous = new CounterStore.Sample();
+
+    /**
+     * @param writer    The writer to pass the metrics on to
+     * @param store     The store keeping the previous values between polls
+     * @param scope     Identifies the JVM polled, i.e. its url, so the same MBean on
+     *                  different JVMs are kept apart
+     */
+    public CounterWriter(MetricWriter writer, CounterStore store, String scope) {
+        this.writer = writer;
+        this.store = store;
+        this.scope = scope;
+    }
+
+    public void begin() throws IOException {
+        writer.begin();
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+        if (metric.isCounter() && metric.getValue() instanceof Number) {
+            double value = ((Number) metric.getValue()).doubleValue();
+            long now = System.currentTimeMillis();
+            if (store.update(CounterStore.series(scope, metric), value, now, previous)) {
+                double delta = value - previous.getValue();
+                if (delta < 0) {
+                    // Counter was reset so count from zero
+                    delta = value;
+                }
+                metric.setDelta(delta);
+                long elapsed = now - previous.getTime();
+                if (elapsed > 0) {
+                    metric.setRate(delta * 1000 / elapsed);
+                }
+            }
+        }
+        writer.write(metric);
+    }
+
+    public void end() throws IOException {
+        writer.end();
+    }
+}
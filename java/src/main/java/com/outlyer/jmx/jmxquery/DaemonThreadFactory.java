@@ -0,0 +1,27 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Names the collector's worker threads and stops them keeping the JVM running
+ * 
+ * @author David Gildeh (www.outlyer.com)
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private int count = 0;
+
+    /**
+     * @param prefix    Prefix for the thread names, followed by a count
+     */
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public synchronized Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + (++count));
+        thread.setDaemon(true);
+        return thread;
+    }
+}
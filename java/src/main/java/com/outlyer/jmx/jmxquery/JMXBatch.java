@@ -0,0 +1,93 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * Runs batches of queries read from an input stream against one long lived
+ * connection, so a parent process can keep a single JVM running instead of
+ * starting one for every query.
+ *
+ * Each request is one line of queries in the -query format. Each response is
+ * framed as the length of the payload in bytes on its own line, followed by
+ * the UTF-8 JSON payload: the metrics array or an error object. Every request
+ * line gets exactly one response, in order. The connection is kept warm in a
+ * JMXConnectorPool so it's already open when the first request arrives and is
+ * made again in the background if it's lost. The last value of each counter
+ * is kept between requests so responses include counter rates.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JMXBatch {
+
+    private final JMXTarget target;
+    private final JMXConnectorPool pool;
+    private final CounterStore counters = new CounterStore(CounterStore.DEFAULT_MAX_AGE);
+
+    /**
+     * @param target    Connection details for the JVM to query
+     * @param pool      Pool to keep the connection in between batches
+     */
+    public JMXBatch(JMXTarget target, JMXConnectorPool pool) {
+        this.target = target;
+        this.pool = pool;
+    }
+
+    /**
+     * Answer requests until the input is closed
+     *
+     * @param input                 Stream to read request lines from
+     * @param output                Stream to write framed responses to
+     * @param maintenancePeriod     Milliseconds between connection health checks
+     * @throws IOException
+     */
+    public void run(InputStream input, OutputStream output, long maintenancePeriod) throws IOException {
+
+        if (target.getUrl() != null) {
+            pool.warm(target.getUrl(), target.getUsername(), target.getPassword());
+        }
+        pool.startMaintenance(maintenancePeriod);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        OutputStream out = new BufferedOutputStream(output);
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                write(out, query(line));
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Run one request line
+     *
+     * @param queries   Queries separated by semi-colons
+     * @return          The response payload
+     */
+    private String query(String queries) {
+        JMXTarget batch = new JMXTarget(target.getUrl(), target.getUsername(), target.getPassword());
+        try {
+            batch.addQueries(queries);
+        } catch (ParseError e) {
+            return JMXDaemon.error("bad-query", e.getMessage());
+        }
+        if (batch.getMetrics().isEmpty()) {
+            return "[]";
+        }
+        return JMXDaemon.query(pool, counters, null, batch);
+    }
+
+    private static void write(OutputStream out, String response) throws IOException {
+        byte[] payload = response.getBytes("UTF-8");
+        out.write((payload.length + "\n").getBytes("UTF-8"));
+        out.write(payload);
+        out.flush();
+    }
+}
@@ -2,24 +2,43 @@ package com.outlyer.jmx.jmxquery;
 
 import com.outlyer.jmx.jmxquery.tools.JMXTools;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.UnmarshalException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
+import javax.management.ListenerNotFoundException;
 import javax.management.MBeanAttributeInfo;
-import javax.management.MBeanInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
-import javax.management.ObjectInstance;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.InvalidKeyException;
-import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularData;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
@@ -33,6 +52,23 @@ public class JMXConnector {
     
     private javax.management.remote.JMXConnector connector;
     private MBeanServerConnection connection;
+    private MBeanCache cache;
+    private int concurrency = 1;
+    private ExecutorService executor;
+    private ConnectionStats stats;
+    private boolean selfMetrics = false;
+    
+    /**
+     * Wraps an existing MBean server connection, i.e. the platform MBeanServer
+     * when querying the JVM this is running in
+     * 
+     * @param connection    The MBean server connection to query
+     */
+    public JMXConnector(MBeanServerConnection connection) {
+        this.connection = connection;
+        this.cache = new MBeanCache(connection, MBeanCache.DEFAULT_TTL);
+        this.cache.listen();
+    }
     
     /**
      * Connects to local process 
@@ -85,15 +121,25 @@ public class JMXConnector {
         
         JMXServiceURL jmxUrl = new JMXServiceURL(url);
 
-        if (username != null) {
-            Map<String, String[]> m = new HashMap<String, String[]>();
-            m.put(javax.management.remote.JMXConnector.CREDENTIALS, new String[]{username, password});
-            connector = JMXConnectorFactory.connect(jmxUrl, m);
-        } else {
-            connector = JMXConnectorFactory.connect(jmxUrl);
+        try {
+            if (username != null) {
+                Map<String, String[]> m = new HashMap<String, String[]>();
+                m.put(javax.management.remote.JMXConnector.CREDENTIALS, new String[]{username, password});
+                connector = JMXConnectorFactory.connect(jmxUrl, m);
+            } else {
+                connector = JMXConnectorFactory.connect(jmxUrl);
+            }
+        } catch (IOException e) {
+            CollectorStats.get().connectionError();
+            throw e;
         }
 
         connection = connector.getMBeanServerConnection();
+        
+        // Cache MBean metadata between queries, evicted by registration notifications
+        cache = new MBeanCache(connection, MBeanCache.DEFAULT_TTL);
+        connector.addConnectionNotificationListener(cache, null, null);
+        cache.listen();
     }
 
     /**
@@ -102,12 +148,119 @@ public class JMXConnector {
      * @throws IOException 
      */
     public void disconnect() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (cache != null) {
+            cache.close();
+        }
         if (connector != null) {
             connector.close();
             connector = null;
         }
     }
     
+    /**
+     * Listen for connection notifications, such as the connection being closed 
+     * or failing. Does nothing if wrapping an MBeanServerConnection directly.
+     * 
+     * @param listener  The listener to receive JMXConnectionNotifications
+     * @param filter    Filter for the notifications, null for all
+     * @param handback  Object passed back to the listener with each notification
+     */
+    public void addConnectionNotificationListener(NotificationListener listener, 
+            NotificationFilter filter, Object handback) {
+        if (connector != null) {
+            connector.addConnectionNotificationListener(listener, filter, handback);
+        }
+    }
+    
+    /**
+     * Checks the connection is still alive with the cheapest call available
+     * 
+     * @throws IOException  If the connection is broken
+     */
+    public void ping() throws IOException {
+        connection.getMBeanCount();
+    }
+    
+    /**
+     * @return  The MBean server connection queries are run on
+     */
+    MBeanServerConnection getConnection() {
+        return connection;
+    }
+    
+    /**
+     * Count the calls made to the MBean server and how long they take, by
+     * query. Must be called before running any queries.
+     * 
+     * @param stats     The stats to record the calls in
+     */
+    public synchronized void setStats(ConnectionStats stats) {
+        this.stats = stats;
+        connection = InstrumentedConnection.wrap(connection, stats);
+        
+        // Make the cache again on the wrapped connection so its lookups are counted
+        if (connector != null) {
+            try {
+                connector.removeConnectionNotificationListener(cache);
+            } catch (ListenerNotFoundException e) {
+                // Not listening
+            }
+        }
+        cache.close();
+        cache = new MBeanCache(connection, MBeanCache.DEFAULT_TTL);
+        if (connector != null) {
+            connector.addConnectionNotificationListener(cache, null, null);
+        }
+        cache.listen();
+    }
+    
+    /**
+     * @return  The call stats being recorded, null if calls aren't counted
+     */
+    public synchronized ConnectionStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Write the collector's own metrics for each scrape after the metrics
+     * collected: how long the scrape and each query took, the MBeans matched,
+     * attributes read and values written as Null, and the connection errors
+     * seen by this process. See CollectorStats.
+     * 
+     * @param selfMetrics   Whether to write the self metrics
+     */
+    public synchronized void setSelfMetrics(boolean selfMetrics) {
+        this.selfMetrics = selfMetrics;
+    }
+    
+    public synchronized boolean isSelfMetrics() {
+        return selfMetrics;
+    }
+    
+    /**
+     * Set how many queries can be run at the same time by getMetrics
+     * 
+     * @param concurrency   Maximum number of queries to run in parallel, 1 to run them in order
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be 1 or more, got " + concurrency);
+        }
+        if (concurrency != this.concurrency && executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        this.concurrency = concurrency;
+    }
+    
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+    
     /**
      * Fetches a list of metrics and their values in one go
      * 
@@ -122,125 +275,352 @@ public class JMXConnector {
     public ArrayList<JMXMetric> getMetrics(ArrayList<JMXMetric> metricsList) throws IOException, 
             MalformedObjectNameException, InstanceNotFoundException, IntrospectionException, ReflectionException {
         
-        ArrayList<JMXMetric> newMetricList = new ArrayList<JMXMetric>();
-        for (JMXMetric metric : metricsList) {
-            ArrayList<JMXMetric> fetchedMetrics = getMetrics(metric);
-            newMetricList.addAll(fetchedMetrics);
-        }  
-        return newMetricList;
+        ListWriter list = new ListWriter();
+        getMetrics(metricsList, list);
+        return list.metrics;
+    }
+    
+    /**
+     * Fetches a list of metrics, passing each one to the writer as soon as it
+     * is read instead of collecting them first. When queries run in parallel
+     * each query's results are written as soon as it and the queries before it
+     * have finished, so the output is in the same order either way.
+     * 
+     * @param metricsList   List of JMXMetrics to fetch
+     * @param writer        Writer to send the metrics found to
+     * @throws java.io.IOException
+     * @throws javax.management.MalformedObjectNameException
+     * @throws javax.management.InstanceNotFoundException
+     * @throws javax.management.IntrospectionException
+     * @throws javax.management.ReflectionException
+     */
+    public void getMetrics(ArrayList<JMXMetric> metricsList, MetricWriter writer) throws IOException, 
+            MalformedObjectNameException, InstanceNotFoundException, IntrospectionException, ReflectionException {
+        
+        Scrape scrape = new Scrape(writer);
+        boolean failed = true;
+        try {
+            writer.begin();
+            writeMetricsInOrder(metricsList, scrape);
+            if (isSelfMetrics()) {
+                scrape.writeSelfMetrics();
+            }
+            writer.end();
+            failed = false;
+        } catch (IOException e) {
+            CollectorStats.get().connectionError();
+            throw e;
+        } finally {
+            scrape.record(failed);
+        }
+    }
+    
+    /**
+     * Runs the queries, writing results straight to the writer when running in
+     * order, otherwise writing each query's results once the queries before it
+     * have been written. A query 
+     * that fails on its own, i.e. a bad MBean name or an MBean throwing an 
+     * exception, is written as an error result in its place and the other 
+     * queries' results are kept. Only a broken connection fails every query.
+     * 
+     * @param metricsList   List of JMXMetrics to fetch
+     * @param scrape        Writer to send the metrics to
+     */
+    private void writeMetricsInOrder(ArrayList<JMXMetric> metricsList, final Scrape scrape) 
+            throws IOException {
+        
+        ExecutorService pool = getExecutor();
+        if (pool == null || metricsList.size() < 2) {
+            for (JMXMetric metric : metricsList) {
+                getMetricsIsolated(metric, scrape, scrape);
+            }  
+            return;
+        }
+        
+        // Run each query on the pool, writing the results in query order
+        ArrayList<Future<ArrayList<JMXMetric>>> results = new ArrayList<Future<ArrayList<JMXMetric>>>();
+        for (final JMXMetric metric : metricsList) {
+            results.add(pool.submit(new Callable<ArrayList<JMXMetric>>() {
+                public ArrayList<JMXMetric> call() throws Exception {
+                    ListWriter list = new ListWriter();
+                    getMetricsIsolated(metric, list, scrape);
+                    return list.metrics;
+                }
+            }));
+        }
+        
+        // Let every query finish before reporting a broken connection
+        Throwable failure = null;
+        for (Future<ArrayList<JMXMetric>> result : results) {
+            try {
+                ArrayList<JMXMetric> metrics = result.get();
+                if (failure == null) {
+                    for (JMXMetric metric : metrics) {
+                        scrape.write(metric);
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                for (Future<ArrayList<JMXMetric>> pending : results) {
+                    pending.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for queries to finish");
+            }
+        }
+        
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException("Query failed: " + failure.toString());
+        }
+    }
+    
+    /**
+     * Runs a single query, writing an error result in place of its results if
+     * it fails for any reason other than the connection
+     * 
+     * @param metricQuery   The query to run
+     * @param writer        Writer to send the MBean metrics found to
+     * @param scrape        The scrape the query is part of
+     * @throws IOException  If the connection is broken
+     */
+    private void getMetricsIsolated(JMXMetric metricQuery, MetricWriter writer, Scrape scrape) throws IOException {
+        try {
+            getMetrics(metricQuery, writer, scrape);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            JMXMetric error = metricQuery.newResult(null, metricQuery.getmBeanName(), 
+                    metricQuery.getAttribute(), metricQuery.getAttributeKey());
+            error.setError(e.toString());
+            writer.write(error);
+        }
+    }
+    
+    /**
+     * Gets the pool used to run queries in parallel, creating it on first use
+     * 
+     * @return  The query pool, null if queries should run in order
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (concurrency < 2) {
+            return null;
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("jmxquery-query-"));
+        }
+        return executor;
     }
     
     /**
      * Main function to query and get metrics from JMX
      * 
      * @param metricQuery       Metric query to filter on, use *:* to list everything
-     * @return                  A list of all the MBean metrics found from the query
+     * @param writer            Writer to send the MBean metrics found to
+     * @param scrape            The scrape the query is part of
      * @throws java.io.IOException
      * @throws javax.management.MalformedObjectNameException
      * @throws javax.management.InstanceNotFoundException
      * @throws javax.management.IntrospectionException
      * @throws javax.management.ReflectionException
      */
-    private ArrayList<JMXMetric> getMetrics(JMXMetric metricQuery) throws IOException, 
+    private void getMetrics(JMXMetric metricQuery, MetricWriter writer, Scrape scrape) throws IOException, 
             MalformedObjectNameException, InstanceNotFoundException, IntrospectionException, ReflectionException {
         
-        ArrayList<JMXMetric> metrics = new ArrayList<JMXMetric>();
+        String query = metricQuery.getmBeanName() 
+                + (metricQuery.getAttribute() != null ? "/" + metricQuery.getAttribute() : "")
+                + (metricQuery.getAttributeKey() != null ? "/" + metricQuery.getAttributeKey() : "");
+        ConnectionStats queryStats = getStats();
+        long start = System.nanoTime();
+        if (queryStats != null) {
+            queryStats.setQuery(query);
+        }
+        try {
+            runQuery(metricQuery, writer, scrape);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (queryStats != null) {
+                queryStats.setQuery(null);
+                queryStats.recordQuery(query, nanos);
+            }
+            scrape.recordQuery(query, nanos);
+        }
+    }
+    
+    /**
+     * Runs a single query, see getMetrics()
+     */
+    private void runQuery(JMXMetric metricQuery, MetricWriter writer, Scrape scrape) throws IOException, 
+            MalformedObjectNameException, InstanceNotFoundException, IntrospectionException, ReflectionException {
         
-        MBeanInfo info = null;
         JMXMetric attributeMetric = null;
+        ObjectName queryName = new ObjectName(metricQuery.getmBeanName());
+        
+        // Fully qualified queries can be read directly without looking up the MBean
+        if (!queryName.isPattern() && (metricQuery.getAttribute() != null) &&
+                (! metricQuery.getAttribute().equals("*")) && (metricQuery.getFilterExp() == null)) {
+            getMetric(queryName, metricQuery, writer, scrape);
+            return;
+        }
         
-        // Get list of MBeans from MBean Query           
-        Set<ObjectInstance> instances = connection.queryMBeans(new ObjectName(metricQuery.getmBeanName()), null);
-        Iterator<ObjectInstance> iterator = instances.iterator();
+        // Get list of MBeans from MBean Query, predicates are run by the MBean
+        // server and depend on attribute values so aren't cached
+        Set<ObjectName> names = (metricQuery.getFilterExp() != null) 
+                ? connection.queryNames(queryName, metricQuery.getFilterExp())
+                : cache.queryNames(queryName);
+        scrape.mbeans.addAndGet(names.size());
+        Iterator<ObjectName> iterator = names.iterator();
 
         // Iterate through results
         while (iterator.hasNext()) {
 
-            ObjectInstance instance = iterator.next();
+            ObjectName name = iterator.next();
 
             try {
 
                 // Get list of attributes for MBean
-                info = connection.getMBeanInfo(new ObjectName(instance.getObjectName().toString()));                
-                MBeanAttributeInfo[] attributes = info.getAttributes();
+                MBeanAttributeInfo[] attributes = cache.getAttributes(name);
+                
+                // Collect the attributes wanted so they can be read in one call
+                ArrayList<JMXMetric> attributeMetrics = new ArrayList<JMXMetric>();
                 for (MBeanAttributeInfo attribute : attributes) {
 
-                    attributeMetric= new JMXMetric(instance.getObjectName().toString(),
-                                                    attribute.getName(), 
-                                                    null);
-                    attributeMetric.setmetricName(metricQuery.getmetricName());
-                    attributeMetric.setmetricLabels(metricQuery.getmetricLabels());
-
                     // If attribute given in query, only return those attributes
                     if ((metricQuery.getAttribute() != null) &&
-                            (! metricQuery.getAttribute().equals("*"))) {
-
-                        if (attribute.getName().equals(metricQuery.getAttribute())) {
-                            // Set attribute type and get the metric(s)
-                            attributeMetric.setAttributeType(attribute.getType());
-                            attributeMetric.setAttribute(attribute.getName());
-                            metrics.addAll(getAttributes(attributeMetric));
-                        }
-                    } else {
-
-                        // Get all attributes for MBean Query
-                        attributeMetric.setAttributeType(attribute.getType());
-                        attributeMetric.setAttribute(attribute.getName());
-                        metrics.addAll(getAttributes(attributeMetric));
+                            (! metricQuery.getAttribute().equals("*")) &&
+                            (! attribute.getName().equals(metricQuery.getAttribute()))) {
+                        continue;
                     }
+                    
+                    attributeMetric = metricQuery.newResult(name, name.toString(),
+                                                    attribute.getName(), 
+                                                    metricQuery.getAttributeKey());
+                    attributeMetric.setAttributeType(attribute.getType());
+                    attributeMetrics.add(attributeMetric);
+                }
+                
+                if (attributeMetrics.isEmpty()) {
+                    continue;
+                }
+                
+                String[] attributeNames = new String[attributeMetrics.size()];
+                for (int i = 0; i < attributeNames.length; i++) {
+                    attributeNames[i] = attributeMetrics.get(i).getAttribute();
+                }
+                Map<String, Object> values = getAttributeValues(name, attributeNames);
+                scrape.attributes.addAndGet(values.size());
+                
+                for (JMXMetric metric : attributeMetrics) {
+                    getAttributes(metric, values.get(metric.getAttribute()), writer);
                 }
             } catch (NullPointerException e) {
                 attributeMetric.setAttributeType(null);
                 attributeMetric.setValue(null);
-                metrics.add(attributeMetric);
+                writer.write(attributeMetric);
             }   
         }
-     
-        return metrics;
     }
     
     /**
-     * Expand an attribute to get all keys and values for it
+     * Reads a single attribute for a query that names a concrete MBean and
+     * attribute, so it only needs one call to the MBean server
      * 
-     * @param attribute     The attribute to expand
-     * @return              A list of all the attribute keys/values
+     * @param name          The MBean to read from
+     * @param metricQuery   The metric query naming the attribute to read
+     * @param writer        Writer to send the attribute metrics to, none are 
+     *                      sent if the MBean or attribute doesn't exist
+     * @param scrape        The scrape the query is part of
+     * @throws IOException 
      */
-    private ArrayList<JMXMetric> getAttributes(JMXMetric attribute) {
-        return getAttributes(attribute, null);
+    private void getMetric(ObjectName name, JMXMetric metricQuery, MetricWriter writer, Scrape scrape) 
+            throws IOException {
+        
+        Object value = null;
+        try {
+            value = connection.getAttribute(name, metricQuery.getAttribute());
+            scrape.mbeans.incrementAndGet();
+            scrape.attributes.incrementAndGet();
+        } catch (InstanceNotFoundException e) {
+            return;
+        } catch (AttributeNotFoundException e) {
+            return;
+        } catch (UnmarshalException e) {
+            // Value can't be read by this client, return it as Null
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // Do nothing - these are thrown if value is UnAvailable
+        }
+        
+        JMXMetric attributeMetric = metricQuery.newResult(name, metricQuery.getmBeanName(),
+                                                  metricQuery.getAttribute(),
+                                                  metricQuery.getAttributeKey());
+        getAttributes(attributeMetric, value, writer);
     }
     
     /**
-     * Recursive function to expand Attributes and get any values for them
+     * Reads a set of attributes from a single MBean in one round trip. Any
+     * attributes missing from the returned list (i.e. the getter threw) are
+     * retried one by one so a single bad attribute doesn't lose the rest.
      * 
-     * @param attribute     The top attribute to expand values for
-     * @param value         Null if calling, used to recursively get values 
-     * @return              A list of all the attributes and values for the attribute
+     * @param name              The MBean to read the attributes from
+     * @param attributeNames    The names of the attributes to read
+     * @return                  Map of attribute name to value, unavailable attributes are left out
      */
-    private ArrayList<JMXMetric> getAttributes(JMXMetric attribute, Object value) {
+    private Map<String, Object> getAttributeValues(ObjectName name, String[] attributeNames) {
         
-        ArrayList<JMXMetric> attributes = new ArrayList<JMXMetric>();
+        Map<String, Object> values = new HashMap<String, Object>();
         
-        if (value == null) {
-            // First time running so get value from JMX connection
-            try { 
-               value = connection.getAttribute(new ObjectName(attribute.getmBeanName()), attribute.getAttribute()); 
-            } catch(Exception e) {
-                // Do nothing - these are thrown if value is UnAvailable
+        try {
+            AttributeList attributeList = connection.getAttributes(name, attributeNames);
+            for (Object item : attributeList) {
+                Attribute attribute = (Attribute) item;
+                values.put(attribute.getName(), attribute.getValue());
             }
+        } catch (Exception e) {
+            // Fall back to reading each attribute below
         }
         
+        for (String attributeName : attributeNames) {
+            if (! values.containsKey(attributeName)) {
+                try { 
+                    values.put(attributeName, connection.getAttribute(name, attributeName)); 
+                } catch (Exception e) {
+                    // Do nothing - these are thrown if value is UnAvailable
+                }
+            }
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Recursive function to expand Attributes and get any values for them
+     * 
+     * @param attribute     The top attribute to expand values for
+     * @param value         The value read for the attribute
+     * @param writer        Writer to send all the attributes and values for the attribute to
+     * @throws IOException
+     */
+    private void getAttributes(JMXMetric attribute, Object value, MetricWriter writer) throws IOException {
+        
         if (value instanceof CompositeData) {
             CompositeData cData = (CompositeData) value;
             // If attribute has key specified, only get that otherwise get all keys
             if (attribute.getAttributeKey() != null) {
                 try {
-                    JMXMetric foundKey = new JMXMetric(attribute.getmBeanName(),
+                    JMXMetric foundKey = attribute.newResult(attribute.getObjectName(), 
+                                                attribute.getmBeanName(),
                                                 attribute.getAttribute(),
                                                 attribute.getAttributeKey());
                     foundKey.setAttributeType(cData.get(attribute.getAttributeKey()));
-                    foundKey.setmetricName(attribute.getmetricName());
-                    foundKey.setmetricLabels(attribute.getmetricLabels()); 
-                    attributes.addAll(getAttributes(foundKey, cData.get(attribute.getAttributeKey())));                    
+                    getAttributes(foundKey, cData.get(attribute.getAttributeKey()), writer);                    
                 } catch (InvalidKeyException e) {
                     // Key doesn't exist so don't add to list
                 }    
@@ -248,24 +628,244 @@ public class JMXConnector {
                 // List all the attribute keys
                 Set<String> keys = cData.getCompositeType().keySet(); 
                 for (String key : keys) {
-                    JMXMetric foundKey = new JMXMetric(attribute.getmBeanName(),
+                    JMXMetric foundKey = attribute.newResult(attribute.getObjectName(), 
+                                             attribute.getmBeanName(),
                                              attribute.getAttribute(), key);
                     foundKey.setAttributeType(cData.get(key));
-                    foundKey.setmetricName(attribute.getmetricName());
-                    foundKey.setmetricLabels(attribute.getmetricLabels()); 
-                    attributes.addAll(getAttributes(foundKey, cData.get(key)));
+                    getAttributes(foundKey, cData.get(key), writer);
                 }
             }    
-        } else if (value instanceof TabularDataSupport) {
-            // Ignore getting values for these types
+        } else if (value instanceof TabularData && attribute.getAttributeKey() != null) {
+            getRows(attribute, (TabularData) value, writer);
+        } else if (value instanceof TabularData) {
+            // Tables can be large so are only expanded when the query selects rows
             attribute.setAttributeType(value);
-            attributes.add(attribute);
+            writer.write(attribute);
         } else {
             attribute.setAttributeType(value);
             attribute.setValue(value);
-            attributes.add(attribute);
+            writer.write(attribute);
+        }
+    }
+    
+    /**
+     * Writes the cells of a table selected by the attribute key, {rows}/{columns}.
+     * Rows are picked by their index values, joined with : for tables with
+     * more than one index column, and separated by |, or * for all rows. 
+     * Columns are separated by |, all the columns that aren't part of the 
+     * index are read if none are given. The table is walked once and only the
+     * selected cells are turned into metrics.
+     * 
+     * @param attribute     The table attribute with the selection in its attributeKey
+     * @param table         The table read
+     * @param writer        Writer to send a metric for each selected cell to
+     * @throws IOException 
+     */
+    private void getRows(JMXMetric attribute, TabularData table, MetricWriter writer) throws IOException {
+        
+        String[] selection = JMXMetric.split(attribute.getAttributeKey(), '/');
+        Set<String> rows = null;
+        if (!selection[0].equals("*")) {
+            rows = new HashSet<String>();
+            for (String row : JMXMetric.split(selection[0], '|')) {
+                rows.add(unquote(row));
+            }
+        }
+        
+        List<String> indexNames = table.getTabularType().getIndexNames();
+        ArrayList<String> columns = new ArrayList<String>();
+        if (selection.length > 1) {
+            for (String column : JMXMetric.split(selection[1], '|')) {
+                columns.add(unquote(column));
+            }
+        } else {
+            for (String column : table.getTabularType().getRowType().keySet()) {
+                if (!indexNames.contains(column)) {
+                    columns.add(column);
+                }
+            }
         }
         
-        return attributes;
+        int found = 0;
+        for (Object item : table.values()) {
+            CompositeData row = (CompositeData) item;
+            
+            StringBuilder key = new StringBuilder();
+            for (String indexName : indexNames) {
+                if (key.length() > 0) {
+                    key.append(':');
+                }
+                key.append(row.get(indexName));
+            }
+            if (rows != null && !rows.contains(key.toString())) {
+                continue;
+            }
+            
+            Map<String, String> index = new HashMap<String, String>();
+            for (String indexName : indexNames) {
+                index.put(indexName, String.valueOf(row.get(indexName)));
+            }
+            for (String column : columns) {
+                if (!row.containsKey(column)) {
+                    continue;
+                }
+                JMXMetric cell = attribute.newResult(attribute.getObjectName(), attribute.getmBeanName(),
+                        attribute.getAttribute(), key + "/" + column);
+                cell.setCell(index, column);
+                Object cellValue = row.get(column);
+                cell.setAttributeType(cellValue);
+                if (!(cellValue instanceof CompositeData) && !(cellValue instanceof TabularData)) {
+                    cell.setValue(cellValue);
+                }
+                writer.write(cell);
+            }
+            
+            // Stop once every row asked for has been found
+            if (rows != null && ++found == rows.size()) {
+                break;
+            }
+        }
+    }
+    
+    private static String unquote(String text) {
+        if (text.length() > 1 && text.startsWith("\"") && text.endsWith("\"")) {
+            return text.substring(1, text.length() - 1);
+        }
+        return text;
+    }
+    
+    /**
+     * Times each call made through an MBeanServerConnection and records it in 
+     * the connection stats
+     */
+    private static class InstrumentedConnection implements InvocationHandler {
+        
+        private final MBeanServerConnection connection;
+        private final ConnectionStats stats;
+        
+        private InstrumentedConnection(MBeanServerConnection connection, ConnectionStats stats) {
+            this.connection = connection;
+            this.stats = stats;
+        }
+        
+        static MBeanServerConnection wrap(MBeanServerConnection connection, ConnectionStats stats) {
+            return (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+                    new Class<?>[] { MBeanServerConnection.class }, new InstrumentedConnection(connection, stats));
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(connection, args);
+            }
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                failed = true;
+                throw e.getCause();
+            } finally {
+                stats.recordCall(method.getName(), System.nanoTime() - start, failed);
+            }
+        }
+    }
+    
+    /**
+     * Counts what a call to getMetrics did as the metrics are written, and
+     * writes the self metrics for it
+     */
+    private static class Scrape implements MetricWriter {
+        
+        private final MetricWriter writer;
+        private final long start = System.nanoTime();
+        private final AtomicLong mbeans = new AtomicLong();
+        private final AtomicLong attributes = new AtomicLong();
+        private final Map<String, Long> queries = new LinkedHashMap<String, Long>();
+        private long nulls = 0;
+        
+        Scrape(MetricWriter writer) {
+            this.writer = writer;
+        }
+        
+        public void begin() throws IOException {
+            writer.begin();
+        }
+        
+        public void write(JMXMetric metric) throws IOException {
+            // Only reads that gave null or were unavailable, which are typed Null. Tables
+            // and composites written without a value, and failed queries, aren't counted.
+            if (metric.getValue() == null && metric.getError() == null 
+                    && "Null".equals(metric.getAttributeType())) {
+                nulls++;
+            }
+            writer.write(metric);
+        }
+        
+        public void end() throws IOException {
+            writer.end();
+        }
+        
+        synchronized void recordQuery(String query, long nanos) {
+            Long previous = queries.get(query);
+            queries.put(query, (previous != null) ? previous + nanos : nanos);
+        }
+        
+        void writeSelfMetrics() throws IOException {
+            Map<String, Long> durations;
+            synchronized (this) {
+                durations = new LinkedHashMap<String, Long>(queries);
+            }
+            for (Map.Entry<String, Long> query : durations.entrySet()) {
+                HashMap<String, String> labels = new HashMap<String, String>();
+                labels.put("query", query.getKey());
+                writer.write(selfMetric("jmxquery_query_duration_seconds", labels, "QueryDuration", 
+                        query.getValue() / 1e9));
+            }
+            writer.write(selfMetric("jmxquery_mbeans_matched", null, "MBeansMatched", mbeans.get()));
+            writer.write(selfMetric("jmxquery_attributes_read", null, "AttributesRead", attributes.get()));
+            writer.write(selfMetric("jmxquery_null_values", null, "NullValues", nulls));
+            JMXMetric errors = selfMetric("jmxquery_connection_errors", null, "ConnectionErrors", 
+                    CollectorStats.get().getConnectionErrors());
+            errors.setMetricType(JMXMetric.COUNTER);
+            writer.write(errors);
+            // Written last so it covers as much of the scrape as possible
+            writer.write(selfMetric("jmxquery_scrape_duration_seconds", null, "ScrapeDuration", 
+                    (System.nanoTime() - start) / 1e9));
+        }
+        
+        void record(boolean failed) {
+            CollectorStats.get().scrape(System.nanoTime() - start, mbeans.get(), attributes.get(), nulls, failed);
+        }
+        
+        private static JMXMetric selfMetric(String name, HashMap<String, String> labels, String attribute, 
+                Object value) {
+            JMXMetric metric = new JMXMetric(CollectorStats.OBJECT_NAME, attribute, null);
+            metric.setmetricName(name);
+            metric.setMetricType(JMXMetric.GAUGE);
+            if (labels != null) {
+                metric.setmetricLabels(labels);
+            }
+            metric.setAttributeType(value);
+            metric.setValue(value);
+            return metric;
+        }
+    }
+    
+    /**
+     * Collects metrics into a list for getMetrics callers that want them all at once
+     */
+    private static class ListWriter implements MetricWriter {
+        
+        private final ArrayList<JMXMetric> metrics = new ArrayList<JMXMetric>();
+
+        public void begin() {
+        }
+
+        public void write(JMXMetric metric) {
+            metrics.add(metric);
+        }
+
+        public void end() {
+        }
     }
 }
\ No newline at end of file
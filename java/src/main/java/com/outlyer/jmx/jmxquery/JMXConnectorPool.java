@@ -0,0 +1,451 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+
+/**
+ * Keeps JMX connections open between queries so long running collectors
+ * don't pay the connection setup on every request. Connections are shared
+ * per url and credentials and closed once they have been idle for too long.
+ *
+ * Connections reported closed or failed by the JMX connector, or that fail a
+ * probe while idle, are made again on next use. Failed connection attempts
+ * back off exponentially with jitter so a JVM that is down isn't hammered.
+ * Warm connections are never closed for being idle and are made again in the
+ * background, keeping connection setup off the query path.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JMXConnectorPool {
+
+    /**
+     * Default time a connection can be unused before it's closed
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * Default time a connection can be unused before it's probed
+     */
+    public static final long DEFAULT_PROBE_INTERVAL = 30 * 1000;
+
+    /**
+     * Default wait after the first failed connection attempt, doubled after each failure
+     */
+    public static final long DEFAULT_MIN_BACKOFF = 1000;
+
+    /**
+     * Default longest wait between connection attempts
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 60 * 1000;
+
+    private final Map<String, PooledConnector> connectors = new HashMap<String, PooledConnector>();
+    private final Map<JMXConnector, Lease> leases = new IdentityHashMap<JMXConnector, Lease>();
+    private final long idleTimeout;
+    private final Random random = new Random();
+    private long probeInterval = DEFAULT_PROBE_INTERVAL;
+    private long minBackoff = DEFAULT_MIN_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private int concurrency = 1;
+    private boolean selfMetrics = false;
+    private Timer maintenance = null;
+
+    /**
+     * @param idleTimeout   Milliseconds a connection can be unused before it's closed
+     */
+    public JMXConnectorPool(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set the query concurrency for connections created by the pool
+     *
+     * @param concurrency   Maximum number of queries each connection runs in parallel
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param selfMetrics   Whether connections created by the pool write self metrics, see JMXConnector
+     */
+    public synchronized void setSelfMetrics(boolean selfMetrics) {
+        this.selfMetrics = selfMetrics;
+    }
+
+    /**
+     * @param probeInterval     Milliseconds a connection can be unused before maintain() probes it
+     */
+    public synchronized void setProbeInterval(long probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * Set how long to wait between failed connection attempts
+     *
+     * @param minBackoff    Milliseconds to wait after the first failure, doubled after each failure
+     * @param maxBackoff    Longest time to wait between attempts
+     */
+    public synchronized void setBackoff(long minBackoff, long maxBackoff) {
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Gets an open connection for a target, connecting if there isn't one
+     * already. Must be given back with release() once the queries are done.
+     *
+     * @param url       JMX Connection URL
+     * @param username  JMX Connection username, null if none
+     * @param password  JMX Connection password, null if none
+     * @return          The open connection
+     * @throws IOException  If a new connection couldn't be made, or the last
+     *                      attempt failed and the pool is backing off
+     */
+    public JMXConnector acquire(String url, String username, String password) throws IOException {
+
+        PooledConnector pooled;
+        synchronized (this) {
+            pooled = get(url, username, password);
+            pooled.users++;
+            pooled.lastUsed = System.currentTimeMillis();
+        }
+
+        // Connect outside the pool lock so one slow target doesn't block the others
+        try {
+            JMXConnector connector = pooled.connect();
+            synchronized (this) {
+                Lease lease = leases.get(connector);
+                if (lease == null) {
+                    lease = new Lease(pooled);
+                    leases.put(connector, lease);
+                }
+                lease.count++;
+            }
+            return connector;
+        } catch (IOException e) {
+            synchronized (this) {
+                pooled.users--;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Keep a connection to a target open and ready, making it now if possible.
+     * If it can't be made now it is retried by maintain().
+     *
+     * @param url       JMX Connection URL
+     * @param username  JMX Connection username, null if none
+     * @param password  JMX Connection password, null if none
+     */
+    public void warm(String url, String username, String password) {
+        PooledConnector pooled;
+        synchronized (this) {
+            pooled = get(url, username, password);
+            pooled.warm = true;
+        }
+        try {
+            pooled.connect();
+        } catch (IOException e) {
+            // Retried in the background
+        }
+    }
+
+    /**
+     * Hand a connection back to the pool after use
+     *
+     * @param connector     The connection returned by acquire()
+     */
+    public synchronized void release(JMXConnector connector) {
+        // Found by lease as the connection may have been replaced while in use
+        Lease lease = leases.get(connector);
+        if (lease != null) {
+            lease.pooled.users--;
+            lease.pooled.lastUsed = System.currentTimeMillis();
+            if (--lease.count <= 0) {
+                leases.remove(connector);
+            }
+        }
+    }
+
+    /**
+     * Drop a connection that has failed so the next acquire() reconnects
+     *
+     * @param connector     The broken connection
+     */
+    public void invalidate(JMXConnector connector) {
+        Lease lease;
+        synchronized (this) {
+            lease = leases.get(connector);
+        }
+        if (lease != null) {
+            lease.pooled.disconnect(connector);
+        }
+    }
+
+    /**
+     * Close all connections that nobody is using and haven't been used within
+     * the idle timeout
+     *
+     * @return  The number of connections closed
+     */
+    public int evictIdle() {
+        ArrayList<PooledConnector> idle = new ArrayList<PooledConnector>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<PooledConnector> iterator = connectors.values().iterator();
+            while (iterator.hasNext()) {
+                PooledConnector pooled = iterator.next();
+                if (!pooled.warm && pooled.users <= 0 && now - pooled.lastUsed > idleTimeout) {
+                    iterator.remove();
+                    idle.add(pooled);
+                }
+            }
+        }
+        for (PooledConnector pooled : idle) {
+            pooled.close();
+        }
+        return idle.size();
+    }
+
+    /**
+     * Closes idle connections, probes connections that haven't been used
+     * recently and makes warm connections again if they have been lost
+     */
+    public void maintain() {
+
+        evictIdle();
+
+        ArrayList<PooledConnector> all;
+        long interval;
+        synchronized (this) {
+            all = new ArrayList<PooledConnector>(connectors.values());
+            interval = probeInterval;
+        }
+
+        long now = System.currentTimeMillis();
+        for (PooledConnector pooled : all) {
+            JMXConnector connector = pooled.connector;
+            if (connector != null && now - Math.max(pooled.lastUsed, pooled.lastChecked) > interval) {
+                pooled.lastChecked = now;
+                try {
+                    connector.ping();
+                } catch (IOException e) {
+                    pooled.disconnect(connector);
+                }
+            }
+            if (pooled.warm && pooled.connector == null) {
+                try {
+                    pooled.connect();
+                } catch (IOException e) {
+                    // Backing off, try again next time
+                }
+            }
+        }
+    }
+
+    /**
+     * Run maintain() in the background until the pool is closed
+     *
+     * @param period    Milliseconds between runs
+     */
+    public synchronized void startMaintenance(long period) {
+        if (maintenance == null) {
+            maintenance = new Timer("jmxquery-pool", true);
+            maintenance.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * @return  The number of connections in the pool
+     */
+    public synchronized int size() {
+        return connectors.size();
+    }
+
+    /**
+     * Close all the connections in the pool
+     */
+    public void close() {
+        ArrayList<PooledConnector> all;
+        synchronized (this) {
+            if (maintenance != null) {
+                maintenance.cancel();
+                maintenance = null;
+            }
+            all = new ArrayList<PooledConnector>(connectors.values());
+            connectors.clear();
+            leases.clear();
+        }
+        for (PooledConnector pooled : all) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * Get the pool entry for a target, creating it if needed. Must hold the pool lock.
+     */
+    private PooledConnector get(String url, String username, String password) {
+        String key = url + "\u0000" + username + "\u0000" + password;
+        PooledConnector pooled = connectors.get(key);
+        if (pooled == null) {
+            pooled = new PooledConnector(url, username, password);
+            connectors.put(key, pooled);
+        }
+        return pooled;
+    }
+
+    /**
+     * @param failures  The number of connection attempts that have failed in a row
+     * @return          Milliseconds to wait before the next attempt
+     */
+    private synchronized long backoff(int failures) {
+        long delay = maxBackoff;
+        if (failures < 31) {
+            delay = Math.min(maxBackoff, minBackoff << (failures - 1));
+        }
+        // Spread out the retries of targets that failed together
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    private synchronized boolean isSelfMetrics() {
+        return selfMetrics;
+    }
+
+    /**
+     * Tracks which pool entry a connection handed out by acquire() belongs to
+     */
+    private static class Lease {
+
+        private final PooledConnector pooled;
+        private int count = 0;
+
+        Lease(PooledConnector pooled) {
+            this.pooled = pooled;
+        }
+    }
+
+    /**
+     * A connection in the pool with its usage and health
+     */
+    private class PooledConnector implements NotificationListener {
+
+        private final String url;
+        private final String username;
+        private final String password;
+        private volatile JMXConnector connector = null;
+        private int users = 0;
+        private volatile long lastUsed = 0;
+        private volatile long lastChecked = 0;
+        private volatile boolean warm = false;
+        private int failures = 0;
+        private long retryAt = 0;
+
+        PooledConnector(String url, String username, String password) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+        }
+
+        /**
+         * @return  The open connection, connecting if needed
+         * @throws IOException  If the connection fails or is backing off
+         */
+        synchronized JMXConnector connect() throws IOException {
+            if (connector != null) {
+                return connector;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now < retryAt) {
+                throw new IOException("Not connecting to " + url + " for another " + (retryAt - now)
+                        + "ms after " + failures + " failed attempts");
+            }
+
+            try {
+                JMXConnector newConnector = new JMXConnector(url, username, password);
+                newConnector.setConcurrency(getConcurrency());
+                newConnector.setSelfMetrics(isSelfMetrics());
+                newConnector.addConnectionNotificationListener(this, null, newConnector);
+                connector = newConnector;
+                lastChecked = now;
+                failures = 0;
+                retryAt = 0;
+                return connector;
+            } catch (IOException e) {
+                failures++;
+                retryAt = System.currentTimeMillis() + backoff(failures);
+                throw e;
+            }
+        }
+
+        /**
+         * Close a connection if it's still the current one, so the next use reconnects
+         *
+         * @param broken    The connection that failed
+         */
+        void disconnect(JMXConnector broken) {
+            synchronized (this) {
+                if (connector != broken) {
+                    return;
+                }
+                connector = null;
+            }
+            try {
+                broken.disconnect();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+
+        void close() {
+            JMXConnector current = connector;
+            if (current != null) {
+                disconnect(current);
+            }
+        }
+
+        /**
+         * Drop the connection when the JMX connector reports it closed or failed
+         * 
+         * @param notification  The connection notification
+         * @param handback      The JMXConnector the notification is for
+         */
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (type.equals(JMXConnectionNotification.FAILED) || type.equals(JMXConnectionNotification.CLOSED)) {
+                final JMXConnector broken = (JMXConnector) handback;
+                if (broken == connector) {
+                    // Don't close the connector from its own notification thread
+                    Thread closer = new Thread("jmxquery-close") {
+                        @Override
+                        public void run() {
+                            disconnect(broken);
+                        }
+                    };
+                    closer.setDaemon(true);
+                    closer.start();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.management.MalformedObjectNameException;
+
+/**
+ * Long running collector that keeps JMX connections open between requests and
+ * serves queries over a local TCP socket. Clients send one or more targets in
+ * the JMXTarget key=value format, each ended by a blank line, and get one line
+ * of JSON back for each target: the metrics array, or an error object in the
+ * same format as the command line errors.
+ *
+ * Connections are kept per url and credentials in a JMXConnectorPool, which
+ * closes them when idle, probes and reconnects them in the background and 
+ * keeps the connection to the default target warm. A query that fails on a
+ * broken connection is retried once on a new one. The last value of each
+ * counter is kept between requests so responses include counter rates.
+ *
+ * When run alongside a JMXScheduler keeping history, a request with a window
+ * key also gets the minimum, maximum, average and last values recorded for 
+ * each metric over that many seconds, in a "window" object. The request's url
+ * must be the same as the schedule group's.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JMXDaemon {
+
+    private final int port;
+    private final JMXTarget defaults;
+    private final JMXConnectorPool pool;
+    private final CounterStore counters = new CounterStore(CounterStore.DEFAULT_MAX_AGE);
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private volatile TimeSeriesStore history = null;
+    private ServerSocket server;
+
+    /**
+     * @param port          Local port to listen on
+     * @param defaults      Connection details used for requests that don't give a url
+     * @param pool          Pool to keep the JMX connections in
+     */
+    public JMXDaemon(int port, JMXTarget defaults, JMXConnectorPool pool) {
+        this.port = port;
+        this.defaults = defaults;
+        this.pool = pool;
+    }
+
+    /**
+     * @param history   The store to answer window requests from, null if no history is kept
+     */
+    public void setHistory(TimeSeriesStore history) {
+        this.history = history;
+    }
+
+    /**
+     * Listen for clients until the daemon is stopped
+     *
+     * @param maintenancePeriod     Milliseconds between pool health checks
+     * @throws IOException          If the server socket can't be opened
+     */
+    public void run(long maintenancePeriod) throws IOException {
+
+        // Only listen on the loopback interface, requests can carry credentials
+        server = new ServerSocket(port, 50, InetAddress.getByName(null));
+
+        if (defaults != null && defaults.getUrl() != null) {
+            pool.warm(defaults.getUrl(), defaults.getUsername(), defaults.getPassword());
+        }
+        pool.startMaintenance(maintenancePeriod);
+
+        try {
+            while (!server.isClosed()) {
+                final Socket client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    if (server.isClosed()) {
+                        break;
+                    }
+                    throw e;
+                }
+                clients.execute(new Runnable() {
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            }
+        } finally {
+            clients.shutdownNow();
+            pool.close();
+        }
+    }
+
+    /**
+     * Stop listening and close all the JMX connections
+     */
+    public void stop() {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * @return  The port the daemon is listening on
+     */
+    public int getPort() {
+        return (server != null) ? server.getLocalPort() : port;
+    }
+
+    /**
+     * Answer each request from a client until it disconnects
+     *
+     * @param client    The client socket
+     */
+    private void serve(Socket client) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"));
+            while (true) {
+                JMXTarget target;
+                try {
+                    target = JMXTarget.read(in, defaults);
+                } catch (ParseError e) {
+                    out.println(error("bad-query", e.getMessage()));
+                    out.flush();
+                    continue;
+                }
+                if (target == null) {
+                    break;
+                }
+                out.println(query(pool, counters, history, target));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Run the queries for a target on a pooled connection, connecting again
+     * once if the pooled connection turns out to be broken
+     *
+     * @param pool      The pool to get the connection from
+     * @param counters  The previous counter values to work out rates from
+     * @param history   The store to summarise windows from, null if no history is kept
+     * @param target    The target and queries to run
+     * @return          The JSON response line
+     */
+    static String query(JMXConnectorPool pool, CounterStore counters, TimeSeriesStore history, 
+            JMXTarget target) {
+
+        if (target.getUrl() == null) {
+            return error("bad-query", "No url given for request");
+        }
+        if (target.getWindow() > 0 && history == null) {
+            return error("bad-query", "No history kept for window requests, see -history");
+        }
+
+        for (int attempt = 0; ; attempt++) {
+
+            JMXConnector connector;
+            try {
+                connector = pool.acquire(target.getUrl(), target.getUsername(), target.getPassword());
+            } catch (IOException e) {
+                return error("connection-error", e.getMessage());
+            }
+
+            try {
+                StringWriter json = new StringWriter();
+                MetricWriter writer = new CounterWriter(new JSONWriter(json, false), counters, target.getUrl());
+                if (target.getWindow() > 0) {
+                    writer = new WindowWriter(writer, history, target.getUrl(), target.getWindow());
+                }
+                connector.getMetrics(target.getMetrics(), writer);
+                return json.toString();
+            } catch (IOException e) {
+                pool.invalidate(connector);
+                pool.release(connector);
+                connector = null;
+                if (attempt > 0) {
+                    return error("query-connection-error", e.getMessage());
+                }
+            } catch (MalformedObjectNameException e) {
+                return error("bad-query", e.getMessage());
+            } catch (Exception e) {
+                return error("general-exception", e.getMessage());
+            } finally {
+                if (connector != null) {
+                    pool.release(connector);
+                }
+            }
+        }
+    }
+
+    static String error(String error, String message) {
+        // Keep the error on one line so it doesn't break the response framing
+        return JSONWriter.error(error, message);
+    }
+}
@@ -0,0 +1,249 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.MalformedObjectNameException;
+
+/**
+ * Collects metrics from many JVMs at once. At most parallel targets are
+ * connected to and queried at the same time, and each target's results are
+ * written as soon as it completes, tagged with the target's name. Targets that
+ * take longer than their timeout are reported as timed out and disconnected so
+ * one slow JVM can't hold up the rest.
+ *
+ * In JSON mode each target is written as a single line:
+ *
+ * {"target" : "name", "metrics" : [...]}
+ * {"target" : "name", "error" : "connection-error", "message" : "..."}
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JMXFanOut {
+
+    /**
+     * Default time allowed to connect to and collect from a target
+     */
+    public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+    private final int parallel;
+    private final long timeout;
+    private final ArrayList<JMXMetric> defaultMetrics;
+    private boolean selfMetrics = false;
+
+    /**
+     * @param parallel          Maximum number of targets to collect from at the same time
+     * @param timeout           Milliseconds allowed per target unless the target sets its own
+     * @param defaultMetrics    Queries to run on targets that don't list any
+     */
+    public JMXFanOut(int parallel, long timeout, ArrayList<JMXMetric> defaultMetrics) {
+        this.parallel = parallel;
+        this.timeout = timeout;
+        this.defaultMetrics = defaultMetrics;
+    }
+
+    /**
+     * @param selfMetrics   Whether to write self metrics for each target, see JMXConnector
+     */
+    public void setSelfMetrics(boolean selfMetrics) {
+        this.selfMetrics = selfMetrics;
+    }
+
+    /**
+     * Collect from all the targets, writing each target's results to the
+     * output as it completes. At most parallel targets are collected from at
+     * once. A target that misses its deadline gives up its place straight
+     * away so the targets queued behind it aren't held up, and its connection
+     * is closed to unblock the thread still waiting on it.
+     *
+     * @param targets       The targets to collect from
+     * @param out           Stream to write results to
+     * @param outputJSON    Write JSON lines instead of human readable text
+     * @throws InterruptedException
+     */
+    public void run(List<JMXTarget> targets, PrintStream out, boolean outputJSON)
+            throws InterruptedException {
+
+        // Threads stuck on a timed out target are abandoned, so the pool can't be fixed
+        ExecutorService workers = Executors.newCachedThreadPool(new DaemonThreadFactory("jmxquery-target-"));
+        ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("jmxquery-deadline-"));
+        Semaphore slots = new Semaphore(parallel);
+        CountDownLatch remaining = new CountDownLatch(targets.size());
+
+        try {
+            for (JMXTarget target : targets) {
+                // The deadline starts when the target gets a slot, not while it's queued
+                slots.acquire();
+                long targetTimeout = (target.getTimeout() > 0) ? target.getTimeout() : timeout;
+                Collection collection = new Collection(target, targetTimeout, slots, remaining, out, outputJSON);
+                collection.start(workers, deadlines);
+            }
+            remaining.await();
+        } finally {
+            // Workers stuck on a dead target are daemon threads so won't stop the JVM exiting
+            workers.shutdownNow();
+            deadlines.shutdownNow();
+        }
+    }
+
+    /**
+     * Connect to a target, run its queries and disconnect
+     *
+     * @param collection    The collection from the target, holds the connection while it's open
+     * @param outputJSON    Format the result as a JSON line
+     * @return              The formatted result
+     */
+    private String collect(Collection collection, boolean outputJSON) {
+
+        JMXTarget target = collection.target;
+        ArrayList<JMXMetric> queries = target.getMetrics().isEmpty() ? defaultMetrics : target.getMetrics();
+
+        JMXConnector connector;
+        try {
+            connector = new JMXConnector(target.getUrl(), target.getUsername(), target.getPassword());
+        } catch (IOException e) {
+            return error(target, "connection-error", e.getMessage(), outputJSON);
+        }
+        if (!collection.open(connector)) {
+            // Timed out while connecting, nothing left to collect for
+            return null;
+        }
+        connector.setSelfMetrics(selfMetrics);
+
+        try {
+            StringWriter result = new StringWriter();
+            if (outputJSON) {
+                result.write("{\"target\" : \"" + JSONWriter.escape(target.getName()) + "\", \"metrics\" : ");
+                connector.getMetrics(queries, new JSONWriter(result, false));
+                result.write("}");
+            } else {
+                connector.getMetrics(queries, new TextWriter(result, target.getName(), false));
+            }
+            return result.toString();
+        } catch (IOException e) {
+            return error(target, "query-connection-error", e.getMessage(), outputJSON);
+        } catch (MalformedObjectNameException e) {
+            return error(target, "bad-query", e.getMessage(), outputJSON);
+        } catch (Exception e) {
+            return error(target, "general-exception", e.getMessage(), outputJSON);
+        } finally {
+            collection.close();
+        }
+    }
+
+    private static String error(JMXTarget target, String error, String message, boolean outputJSON) {
+        if (outputJSON) {
+            return "{\"target\" : \"" + JSONWriter.escape(target.getName()) + "\", \"error\" : \"" + error
+                    + "\", \"message\" : \"" + JSONWriter.escape(String.valueOf(message)) + "\"}";
+        }
+        return target.getName() + " Error (" + error + "): " + message;
+    }
+
+    /**
+     * A single target's collection. Whichever of the result or the deadline
+     * comes first is written, and frees the target's slot.
+     */
+    private class Collection implements Runnable {
+
+        private final JMXTarget target;
+        private final long timeout;
+        private final Semaphore slots;
+        private final CountDownLatch remaining;
+        private final PrintStream out;
+        private final boolean outputJSON;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private final AtomicReference<JMXConnector> connector = new AtomicReference<JMXConnector>();
+        private volatile Future<?> worker;
+        private volatile ScheduledFuture<?> deadline;
+
+        Collection(JMXTarget target, long timeout, Semaphore slots, CountDownLatch remaining,
+                PrintStream out, boolean outputJSON) {
+            this.target = target;
+            this.timeout = timeout;
+            this.slots = slots;
+            this.remaining = remaining;
+            this.out = out;
+            this.outputJSON = outputJSON;
+        }
+
+        void start(ExecutorService workers, ScheduledExecutorService deadlines) {
+            deadline = deadlines.schedule(new Runnable() {
+                public void run() {
+                    expire();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            worker = workers.submit(this);
+        }
+
+        public void run() {
+            finish(collect(this, outputJSON));
+        }
+
+        /**
+         * Hold on to the target's connection so the deadline can close it
+         *
+         * @return  False if the deadline has already passed, the connection is closed
+         */
+        boolean open(JMXConnector opened) {
+            connector.set(opened);
+            if (done.get()) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Close the target's connection unless it's already been closed
+         */
+        void close() {
+            JMXConnector opened = connector.getAndSet(null);
+            if (opened != null) {
+                try {
+                    opened.disconnect();
+                } catch (IOException e) {
+                    // Done with it anyway
+                }
+            }
+        }
+
+        private boolean finish(String result) {
+            if (result == null || !done.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> pending = deadline;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            out.println(result);
+            out.flush();
+            slots.release();
+            remaining.countDown();
+            return true;
+        }
+
+        private void expire() {
+            if (finish(error(target, "timeout", "No result within " + timeout + "ms", outputJSON))) {
+                // Abandon the worker, closing the connection fails any call it's blocked on
+                Future<?> running = worker;
+                if (running != null) {
+                    running.cancel(true);
+                }
+                close();
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.outlyer.jmx.jmxquery;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularDataSupport;
 
@@ -14,10 +17,35 @@ import javax.management.openmbean.TabularDataSupport;
  * 
  * E.g. jvm.memory.heap.used<>=java.lang:type=Memory/HeapMemoryUsage/used
  * 
+ * The metric name can be followed by a type in square brackets, counter or 
+ * gauge, i.e. jvm_threads_started[counter]==java.lang:type=Threading/TotalStartedThreadCount
+ * 
+ * For table attributes (TabularData) the attributeKey selects rows by their
+ * index value, separated by |, or * for every row, optionally followed by the
+ * columns to read, i.e. java.lang:type=Runtime/SystemProperties/java.version|java.home/value.
+ * Tables are only expanded when rows are selected.
+ * 
+ * Predicates can be given in square brackets after the query for the MBean
+ * server to filter MBeans with, see QueryFilter.
+ * 
+ * The tokens in the metric name and labels are compiled once per query and 
+ * shared by every result created from it with newResult(), so replacing them
+ * for each result doesn't need any regular expressions.
+ * 
  * @author David Gildeh (www.outlyer.com)
  */
 public class JMXMetric {
     
+    /**
+     * Metric type for values that only go up, such as event counts
+     */
+    public static final String COUNTER = "counter";
+    
+    /**
+     * Metric type for values that can go up and down
+     */
+    public static final String GAUGE = "gauge";
+    
     private String metricName = null;
     private HashMap<String, String> metricLabels = new HashMap<String, String>();
     private String mBeanName;
@@ -25,6 +53,18 @@ public class JMXMetric {
     private String attributeKey = null;
     private String attributeType = null;
     private Object value = null;
+    private String metricType = null;
+    private Double delta = null;
+    private Double rate = null;
+    private String error = null;
+    private TimeSeriesStore.WindowStats window = null;
+    private ObjectName objectName = null;
+    private Map<String, String> index = null;
+    private String column = null;
+    private String filter = null;
+    private QueryExp filterExp = null;
+    private Template nameTemplate = null;
+    private HashMap<String, Template> labelTemplates = null;
     
     public JMXMetric(String mBeanName, String attribute, String attributeKey) {
         this.mBeanName = mBeanName;
@@ -42,6 +82,7 @@ public class JMXMetric {
 
     public void setmetricName(String metricName) {
         this.metricName = metricName;
+        this.nameTemplate = null;
     }
     
     public HashMap<String, String> getmetricLabels() {
@@ -51,6 +92,7 @@ public class JMXMetric {
     public void setmetricLabels(HashMap<String, String> metricLabels) {
         this.metricLabels.clear();
         this.metricLabels.putAll(metricLabels);
+        this.labelTemplates = null;
     }
 
     public String getmBeanName() {
@@ -85,6 +127,121 @@ public class JMXMetric {
         this.value = value;
     }
 
+    /**
+     * @return  The parsed MBean name if known, null if not
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @return  The predicates given in square brackets after the query, null if none
+     */
+    public String getFilter() {
+        return filter;
+    }
+    
+    /**
+     * @return  The query's predicates compiled for the MBean server to run, null if none
+     */
+    public QueryExp getFilterExp() {
+        return filterExp;
+    }
+    
+    /**
+     * @return  The index columns and their values for the table row this metric
+     *          was read from, null if it wasn't read from a table
+     */
+    public Map<String, String> getIndex() {
+        return index;
+    }
+    
+    /**
+     * @return  The table column this metric was read from, null if it wasn't read from a table
+     */
+    public String getColumn() {
+        return column;
+    }
+    
+    /**
+     * Sets the table cell this metric was read from. The index columns are 
+     * added as labels unless the query already has a label with the same name.
+     * 
+     * @param index     The index columns and their values for the row
+     * @param column    The column read
+     */
+    void setCell(Map<String, String> index, String column) {
+        this.index = index;
+        this.column = column;
+        for (Map.Entry<String, String> entry : index.entrySet()) {
+            if (!this.metricLabels.containsKey(entry.getKey())) {
+                this.metricLabels.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * @return  The metric type given in the query, counter or gauge, null if not given
+     */
+    public String getMetricType() {
+        return metricType;
+    }
+
+    public void setMetricType(String metricType) {
+        this.metricType = metricType;
+    }
+
+    /**
+     * @return  true if the query marked the metric as a counter
+     */
+    public boolean isCounter() {
+        return COUNTER.equals(metricType);
+    }
+
+    /**
+     * @return  The change in a counter since the last poll, null if not known
+     */
+    public Double getDelta() {
+        return delta;
+    }
+
+    public void setDelta(Double delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * @return  The per second rate of a counter since the last poll, null if not known
+     */
+    public Double getRate() {
+        return rate;
+    }
+
+    public void setRate(Double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @return  Why the query this result is for failed, null for results read
+     */
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+     * @return  The stats of the metric's recorded values over a window of time, null if not asked for
+     */
+    public TimeSeriesStore.WindowStats getWindow() {
+        return window;
+    }
+
+    public void setWindow(TimeSeriesStore.WindowStats window) {
+        this.window = window;
+    }
+
     public String getAttributeType() {
         return attributeType;
     }
@@ -119,6 +276,28 @@ public class JMXMetric {
         }
     }
     
+    /**
+     * Creates a metric for a result found by this query, sharing the query's
+     * metric name, labels and their compiled templates
+     * 
+     * @param objectName    The MBean the result was read from, null if not known
+     * @param mBeanName     The MBean name to report for the result
+     * @param attribute     The attribute read
+     * @param attributeKey  The key read from the attribute, null if none
+     * @return              The new result metric
+     */
+    public JMXMetric newResult(ObjectName objectName, String mBeanName, String attribute, String attributeKey) {
+        compile();
+        JMXMetric result = new JMXMetric(mBeanName, attribute, attributeKey);
+        result.objectName = objectName;
+        result.metricName = this.metricName;
+        result.metricType = this.metricType;
+        result.metricLabels.putAll(this.metricLabels);
+        result.nameTemplate = this.nameTemplate;
+        result.labelTemplates = this.labelTemplates;
+        return result;
+    }
+    
     /**
      * Forces the object to replace any tokens in metricName or metricLabels from
      * the mBean object properties, attribute or attributeKey. The following
@@ -127,68 +306,103 @@ public class JMXMetric {
      *  {attribute} - Will replace with this.attribute
      *  {attributeKey} - Will replace with this.attributeKey
      *  {XXX} - Will replace with any mBean object property with same name as XXX
+     *  {column} - For table cells, will replace with the column read, table 
+     *             index columns are replaced like mBean object properties
      * 
      */
     public void replaceTokens() {
         // Only run if metricName isn't null
         if (this.metricName != null) {
             
-            HashMap<String, String> replacements = new HashMap<String, String>();
-            if (this.attribute != null) {
-                replacements.put("attribute", this.attribute);
-            }
-            if (this.attributeKey != null) {
-                replacements.put("attributeKey", this.attributeKey);
+            compile();
+            Map<String, String> properties = getProperties();
+            if (this.column != null) {
+                properties = new HashMap<String, String>(properties);
+                properties.put("column", this.column);
             }
-            // Get properties from mBeanName
-            int firstColon = this.mBeanName.indexOf(':');
-            String[] props = this.mBeanName.substring(firstColon + 1)
-                    .split("(?!\\B\"[^\"]*),(?![^\"]*\"\\B)");
-            for (int i = 0; i < props.length; i++) {
-                String[] parts = props[i].split("=");
-                replacements.put(parts[0], parts[1]);
-            } 
                       
             // First replace tokens in metricName
-            this.metricName = this.replaceTokens(this.metricName, replacements);
+            this.metricName = this.nameTemplate.apply(properties, this.attribute, this.attributeKey);
             // Then labels
-            for (String key : this.metricLabels.keySet()) {
-                String value = this.metricLabels.get(key);
-                if (value.indexOf("}") > 0) {
-                    value = this.replaceTokens(value, replacements);
-                    this.metricLabels.put(key, value);
+            for (Map.Entry<String, Template> label : this.labelTemplates.entrySet()) {
+                this.metricLabels.put(label.getKey(), 
+                        label.getValue().apply(properties, this.attribute, this.attributeKey));
+            }
+        }
+    }
+    
+    /**
+     * Compiles the metric name and label templates if they haven't been yet. 
+     * Only labels with tokens are compiled, other labels are left as given.
+     */
+    private void compile() {
+        if (this.metricName == null) {
+            return;
+        }
+        if (this.nameTemplate == null) {
+            this.nameTemplate = new Template(this.metricName);
+        }
+        if (this.labelTemplates == null) {
+            HashMap<String, Template> templates = new HashMap<String, Template>();
+            for (Map.Entry<String, String> label : this.metricLabels.entrySet()) {
+                if (label.getValue().indexOf('}') > 0) {
+                    templates.put(label.getKey(), new Template(label.getValue()));
                 }
             }
+            this.labelTemplates = templates;
+        }
+    }
+    
+    /**
+     * @return  The key properties of the MBean name, empty if it can't be parsed,
+     *          and the index columns of the table row the metric was read from
+     */
+    Map<String, String> getProperties() {
+        if (this.objectName == null) {
+            try {
+                this.objectName = ObjectName.getInstance(this.mBeanName);
+            } catch (MalformedObjectNameException e) {
+                return (this.index != null) ? this.index : Collections.<String, String>emptyMap();
+            }
+        }
+        if (this.index != null) {
+            Map<String, String> properties = new HashMap<String, String>(this.objectName.getKeyPropertyList());
+            properties.putAll(this.index);
+            return properties;
         }
+        return this.objectName.getKeyPropertyList();
     }
     
     /**
-     * Replaces the text tokens in {} with values if found in the replacements 
-     * HashMap, otherwise just put the token name there instead
+     * Splits text on a separator character that isn't inside double quotes.
+     * Like String.split, trailing empty strings are left out.
      * 
-     * @param text              The text to replace
-     * @param replacements      A HashMap of replacement tokens
-     * @return                  The final string with tokens replaced
+     * @param text          The text to split
+     * @param separator     The character to split on
+     * @return              The parts of the text
      */
-    private String replaceTokens(String text, HashMap<String, String> replacements) {
-        // Looking for tokens in {}, i.e. {name}
-        Pattern pattern = Pattern.compile("\\{(.+?)\\}");
-        Matcher matcher = pattern.matcher(text);
-        StringBuilder builder = new StringBuilder();
-        int i = 0;
-        while (matcher.find()) {
-            String replacement = replacements.get(matcher.group(1));
-            builder.append(text.substring(i, matcher.start()));
-            if (replacement == null)
-                builder.append(matcher.group(0));
-            else
-                builder.append(replacement);
-            i = matcher.end();
+    static String[] split(String text, char separator) {
+        ArrayList<String> parts = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\\' && quoted) {
+                i++;
+            } else if (c == separator && !quoted) {
+                parts.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(text.substring(start));
+        int size = parts.size();
+        while (size > 1 && parts.get(size - 1).length() == 0) {
+            size--;
         }
-        builder.append(text.substring(i, text.length()));
-        // Remove all quotations and spaces from any replacements
-        return builder.toString().replaceAll("\"", "").replaceAll(" ", "_");
-    } 
+        return parts.subList(0, size).toArray(new String[size]);
+    }
     
     /**
      * Helper function to parse query string in following format and initialise
@@ -196,7 +410,8 @@ public class JMXMetric {
      * 
      * {metricName}<{metricLabels}>=={mBeanName}/{attribute}/{attributeKey};
      * 
-     * where {metricName}<{metricLabels}> is optional and can include tokens
+     * where {metricName}<{metricLabels}> is optional and can include tokens. The
+     * metric name can be followed by [counter] or [gauge] to set the metric type.
      * 
      * E.g. java_lang_{attribute}_{key}<type={type},label=key>==java.lang:type=Memory/HeapMemoryUsage/used;
      * 
@@ -213,13 +428,28 @@ public class JMXMetric {
                 String metricNamePart = query.substring(0, seperator);
                 query = query.substring(seperator + 2);
                 
+                // Parse metric type, i.e. name[counter]<labels>
+                int typeStart = metricNamePart.indexOf('[');
+                int labelStart = metricNamePart.indexOf('<');
+                if (typeStart >= 0 && (labelStart < 0 || typeStart < labelStart)) {
+                    int typeEnd = metricNamePart.indexOf(']', typeStart);
+                    if (typeEnd < 0) {
+                        throw new ParseError("Metric type in " + metricNamePart + " is missing ].");
+                    }
+                    this.metricType = metricNamePart.substring(typeStart + 1, typeEnd).trim().toLowerCase();
+                    if (!this.metricType.equals(COUNTER) && !this.metricType.equals(GAUGE)) {
+                        throw new ParseError("Metric type " + this.metricType + " is not counter or gauge.");
+                    }
+                    metricNamePart = metricNamePart.substring(0, typeStart) + metricNamePart.substring(typeEnd + 1);
+                }
+                
                 // Parse metric name and labels
                 if (metricNamePart.indexOf("<") > 0) {
                     int labelSeperator = metricNamePart.indexOf("<");
                     this.metricName = metricNamePart.substring(0, labelSeperator);
                     String labelsPart = metricNamePart.substring(labelSeperator + 1).replace(">", "");
                     // This finds all commas which are not inside double quotes.
-                    String[] labels = labelsPart.split("(?!\\B\"[^\"]*),(?![^\"]*\"\\B)");
+                    String[] labels = split(labelsPart, ',');
                     for (int i=0; i < labels.length; i++) {
                         String[] parts = labels[i].split("=");
                         if (parts.length < 2) {
@@ -227,24 +457,35 @@ public class JMXMetric {
                         }
                         this.metricLabels.put(parts[0], parts[1]);
                     }
-                } else {
+                } else if (metricNamePart.length() > 0) {
                     this.metricName = metricNamePart;
                 }
             }
 
+            // Predicates are given in square brackets after the query
+            if (query.endsWith("]")) {
+                int filterStart = query.lastIndexOf('[');
+                if (filterStart < 0) {
+                    throw new ParseError("Predicates in " + query + " are missing [.");
+                }
+                this.filter = query.substring(filterStart + 1, query.length() - 1);
+                this.filterExp = QueryFilter.parse(this.filter);
+                query = query.substring(0, filterStart);
+            }
+
             // Parse Query
             int firstColon = query.indexOf(':');
             String beanName = query.substring(0, firstColon + 1);
             query = query.substring(firstColon + 1);
 
             // This finds all commas which are not inside double quotes.
-            String[] paths = query.split("(?!\\B\"[^\"]*),(?![^\"]*\"\\B)");
+            String[] paths = split(query, ',');
             for (int i=0; i < paths.length - 1; i++) {
                 beanName += paths[i] + ",";
             }
 
             query = paths[paths.length - 1];
-            String[] parts = query.split("(?!\\B\"[^\"]*)/(?![^\"]*\"\\B)");
+            String[] parts = split(query, '/');
 
             beanName += parts[0];
             this.mBeanName = beanName;
@@ -255,6 +496,10 @@ public class JMXMetric {
             if (parts.length > 2) {
                 this.attributeKey = parts[2];
             }
+            // Tables can select columns as well as rows, {rows}/{columns}
+            if (parts.length > 3) {
+                this.attributeKey += "/" + parts[3];
+            }
             
         } catch (Exception e) {
             throw new ParseError("Error Parsing Metic Query: " + metricQuery , e);
@@ -291,6 +536,16 @@ public class JMXMetric {
         if (value != null) {
             s += " = " + value.toString();
         }
+        if (error != null) {
+            s += " Error: " + error;
+        }
+        if (delta != null) {
+            s += " (delta " + delta;
+            if (rate != null) {
+                s += ", rate " + rate + "/s";
+            }
+            s += ")";
+        }
         
         return s;
     }
@@ -301,42 +556,86 @@ public class JMXMetric {
      * @return  JSON String
      */
     public String toJSON() {
-
-        String beanName = this.mBeanName.replace("\"", "\\\"");
-
-        String json = "{";
-        if (this.metricName != null) {
-            json += "\"metricName\" : \"" + this.metricName + "\",";
-            json += "\"metricLabels\" : {";
-            int keyCount = 0;
-            for (String key : this.metricLabels.keySet()) {
-                json += "\"" + key + "\" : \"" + this.metricLabels.get(key) + "\"";
-                if (++keyCount < this.metricLabels.size()) {
-                    json += ",";
+        return JSONWriter.toJSON(this);
+    }
+    
+    /**
+     * A metric name or label split into literal text and {token} names, so 
+     * tokens can be replaced for each result without parsing the text again
+     */
+    private static class Template {
+        
+        private final String[] literals;
+        private final String[] tokens;
+        private final int length;
+        
+        /**
+         * @param text  The text with tokens in {}, i.e. {name}
+         */
+        Template(String text) {
+            ArrayList<String> literalList = new ArrayList<String>();
+            ArrayList<String> tokenList = new ArrayList<String>();
+            int start = 0;
+            int open;
+            while ((open = text.indexOf('{', start)) >= 0) {
+                // Tokens have at least one character, i.e. {} isn't a token
+                int close = text.indexOf('}', open + 2);
+                if (close < 0) {
+                    break;
                 }
+                literalList.add(text.substring(start, open));
+                tokenList.add(text.substring(open + 1, close));
+                start = close + 1;
             }
-            json += "},";
+            literalList.add(text.substring(start));
+            this.literals = literalList.toArray(new String[literalList.size()]);
+            this.tokens = tokenList.toArray(new String[tokenList.size()]);
+            this.length = text.length();
         }
-        json += "\"mBeanName\" : \"" + beanName + "\"";
-        json += ", \"attribute\" : \"" + this.attribute + "\"";
-        if (this.attributeKey != null) {
-            json += ", \"attributeKey\" : \"" + this.attributeKey + "\"";
-        }
-        if (this.attributeType != null) {
-            json += ", \"attributeType\" : \"" + this.attributeType + "\"";
+        
+        /**
+         * Replaces the tokens with values if found, otherwise leaves the token
+         * name there instead. All quotations are removed and spaces replaced
+         * with underscores.
+         * 
+         * @param properties    The MBean name key properties
+         * @param attribute     Value for the {attribute} token
+         * @param attributeKey  Value for the {attributeKey} token
+         * @return              The final string with tokens replaced
+         */
+        String apply(Map<String, String> properties, String attribute, String attributeKey) {
+            StringBuilder builder = new StringBuilder(length + 16);
+            for (int i = 0; i < tokens.length; i++) {
+                append(builder, literals[i]);
+                String replacement = properties.get(tokens[i]);
+                if (replacement == null) {
+                    if (tokens[i].equals("attribute")) {
+                        replacement = attribute;
+                    } else if (tokens[i].equals("attributeKey")) {
+                        replacement = attributeKey;
+                    }
+                }
+                if (replacement == null) {
+                    builder.append('{');
+                    append(builder, tokens[i]);
+                    builder.append('}');
+                } else {
+                    append(builder, replacement);
+                }
+            }
+            append(builder, literals[tokens.length]);
+            return builder.toString();
         }
-        if (this.value != null) {
-            if ((this.value instanceof Integer) || 
-                    (this.value instanceof Long) || 
-                    (this.value instanceof Double) || 
-                    (this.value instanceof Boolean)) {
-                json += ", \"value\" : " + this.value.toString();
-            } else {
-                json += ", \"value\" : \"" + this.value.toString() + "\"";
+        
+        private static void append(StringBuilder builder, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == ' ') {
+                    builder.append('_');
+                } else if (c != '"') {
+                    builder.append(c);
+                }
             }
         }
-        json += "}";
-
-        return json;
     }
 }
\ No newline at end of file
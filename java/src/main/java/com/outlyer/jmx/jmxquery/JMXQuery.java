@@ -1,13 +1,22 @@
 package com.outlyer.jmx.jmxquery;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 
+import com.outlyer.jmx.jmxquery.tools.PerfDataCollector;
+import com.outlyer.jmx.jmxquery.tools.PerfDataFile;
 import java.util.ArrayList;
 import java.util.Arrays;
+import javax.management.JMException;
 import javax.management.MalformedObjectNameException;
 
 /**
@@ -20,13 +29,32 @@ import javax.management.MalformedObjectNameException;
 public class JMXQuery {
 
     private JMXConnector connector;
+    private PerfDataCollector perfData;
     private final ArrayList<JMXMetric> metrics = new ArrayList<JMXMetric>();
     
     // Command Line Parameters
     String url = null;
     String username = null;
     String password = null;
+    String perfDataPid = null;
     boolean outputJSON = false;
+    boolean outputOpenMetrics = false;
+    boolean outputBinary = false;
+    boolean printStats = false;
+    boolean selfMetrics = false;
+    int concurrency = 1;
+    int daemonPort = -1;
+    boolean batch = false;
+    boolean subscribe = false;
+    int queueSize = JMXSubscriber.DEFAULT_QUEUE_SIZE;
+    boolean block = false;
+    String targetsFile = null;
+    String scheduleFile = null;
+    int keyframeInterval = 0;
+    int historySamples = 0;
+    int parallel = 10;
+    long timeout = JMXFanOut.DEFAULT_TIMEOUT;
+    long idleTimeout = JMXConnectorPool.DEFAULT_IDLE_TIMEOUT;
 
     /**
      * @param args
@@ -36,73 +64,245 @@ public class JMXQuery {
         // Initialise
         JMXQuery query = new JMXQuery();
         query.parse(args);
+        
+        // Lets long running collectors be monitored over JMX like the JVMs they collect from
+        try {
+            CollectorStats.get().register();
+        } catch (JMException e) {
+            // Collecting doesn't need it
+        }
+        
+        // Poll the query groups in the schedule file until killed, serving window
+        // requests from the daemon socket too if one is given
+        if (query.scheduleFile != null) {
+            query.runSchedule();
+            return;
+        }
+        
+        // Run as a daemon serving queries over a local socket
+        if (query.daemonPort >= 0) {
+            JMXConnectorPool pool = new JMXConnectorPool(query.idleTimeout);
+            pool.setConcurrency(query.concurrency);
+            pool.setSelfMetrics(query.selfMetrics);
+            JMXDaemon daemon = new JMXDaemon(query.daemonPort, 
+                    new JMXTarget(query.url, query.username, query.password), pool);
+            // Check at least once a second, -idletimeout 0 closes connections as soon as they're idle
+            daemon.run(Math.max(1000, Math.min(query.idleTimeout, JMXConnectorPool.DEFAULT_PROBE_INTERVAL)));
+            return;
+        }
+        
+        // Collect from every target in the targets file
+        if (query.targetsFile != null) {
+            query.runTargets();
+            return;
+        }
+        
+        // Answer batches of queries from stdin until it's closed
+        if (query.batch) {
+            JMXConnectorPool pool = new JMXConnectorPool(query.idleTimeout);
+            pool.setConcurrency(query.concurrency);
+            pool.setSelfMetrics(query.selfMetrics);
+            new JMXBatch(new JMXTarget(query.url, query.username, query.password), pool)
+                    .run(System.in, System.out, JMXConnectorPool.DEFAULT_PROBE_INTERVAL);
+            return;
+        }
+            
+        // Read the JVM's hsperfdata counters instead of connecting over JMX
+        if (query.perfDataPid != null) {
+            File file = PerfDataFile.find(query.perfDataPid);
+            try {
+                if (file == null) {
+                    throw new IOException("No hsperfdata file found for pid " + query.perfDataPid);
+                }
+                query.perfData = new PerfDataCollector(new PerfDataFile(file));
+            } catch (IOException ioe) {
+                if (query.outputJSON) {
+                    System.out.println(JSONWriter.error("connection-error", ioe.getMessage()));
+                    System.exit(2);
+                } else {
+                    System.out.println("Error reading hsperfdata: " + ioe.getMessage());
+                    System.exit(2);
+                }
+            }
+        }
             
         // Initialise JMX Connection    
-        try {
-            query.connector = new JMXConnector(query.url, query.username, query.password);
-        } catch (IOException ioe) {
-            if (query.outputJSON) {
-                System.out.println("{ \"error\": \"connection-error\", \"message\":\"" + ioe.getMessage() + "\"}");
-                System.exit(2);
-            } else {
-                System.out.println("Error connecting to JMX endpoint: " + ioe.getMessage());
-                System.exit(2);
+        if (query.perfData == null) {
+            try {
+                query.connector = new JMXConnector(query.url, query.username, query.password);
+                query.connector.setConcurrency(query.concurrency);
+                query.connector.setSelfMetrics(query.selfMetrics);
+                if (query.printStats) {
+                    query.connector.setStats(new ConnectionStats());
+                }
+            } catch (IOException ioe) {
+                if (query.outputJSON) {
+                    System.out.println(JSONWriter.error("connection-error", ioe.getMessage()));
+                    System.exit(2);
+                } else {
+                    System.out.println("Error connecting to JMX endpoint: " + ioe.getMessage());
+                    System.exit(2);
+                }
             }
         }
         
-        // Process Query
+        // Process Query, writing each metric out as soon as it's read
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        MetricWriter writer;
+        if (query.outputJSON) {
+            writer = new JSONWriter(out, true);
+        } else if (query.outputOpenMetrics) {
+            writer = new OpenMetricsWriter(out);
+        } else if (query.outputBinary) {
+            writer = new BinaryMetricWriter(new BufferedOutputStream(System.out));
+        } else {
+            writer = new TextWriter(out, null, true);
+        }
         try {
-            ArrayList<JMXMetric> outputMetrics = query.connector.getMetrics(query.metrics);  
-            if (query.outputJSON) {
-                System.out.println("[");
-                int count = 0;
-                for (JMXMetric metric : outputMetrics) {
-                    metric.replaceTokens();
-                    if (count > 0) {                        
-                        System.out.print(", \n" + metric.toJSON());
-                    } else {
-                        count++;
-                        System.out.print(metric.toJSON());
-                    }
-                }
-                System.out.println("]");
+            if (query.perfData != null) {
+                query.perfData.getMetrics(query.metrics, writer);
+            } else if (query.subscribe) {
+                // Write notifications as they arrive until killed
+                JMXSubscriber subscriber = new JMXSubscriber(query.connector, query.queueSize, query.block);
+                subscriber.subscribe(query.metrics);
+                subscriber.run(System.out, query.outputJSON);
             } else {
-                for (JMXMetric metric : outputMetrics) {
-                    metric.replaceTokens();
-                    System.out.println(metric.toString());
-                }
-                System.out.println("=====================");
-                System.out.println("Total Metrics Found: " + String.valueOf(outputMetrics.size()));
+                query.connector.getMetrics(query.metrics, writer);
             }
         } catch (IOException ioe) {
-            if (query.outputJSON) {
-                System.out.println("{ \"error\": \"query-connection-error\", \"message\":\"" + ioe.getMessage() + "\"}");
-                System.exit(2);
-            } else {
-                System.out.println("There was an IO Error running the query '" + query.metrics.toString() + "': " + ioe.getMessage());
-                System.exit(2);
-            }
+            fail(writer, out, "query-connection-error", ioe.getMessage(), 
+                    "There was an IO Error running the query '" + query.metrics.toString() + "': " + ioe.getMessage());
         } catch (MalformedObjectNameException me) {
-            if (query.outputJSON) {
-                System.out.println("{ \"error\": \"bad-query\", \"message\":\"" + me.getMessage() + "\"}");
-                System.exit(2);
-            } else {
-                System.out.println("The query '" + query.metrics.toString() + "' is invalid: " + me.getMessage());
-                System.exit(2);
-            }
+            fail(writer, out, "bad-query", me.getMessage(), 
+                    "The query '" + query.metrics.toString() + "' is invalid: " + me.getMessage());
         } catch (Exception e) {
-            if (query.outputJSON) {
-                System.out.println("{ \"error\": \"general-exception\", \"message\":\"" + e.getMessage() + "\"}");
-                System.exit(2);
+            fail(writer, out, "general-exception", e.getMessage(), 
+                    "An exception was thrown while running the query '" + query.metrics.toString() + "': " + e.getMessage() 
+                    + "\n" + Arrays.toString(e.getStackTrace()));
+        }
+        
+        if (query.connector != null) {
+            // Stats go to stderr so they don't mix with the metrics
+            if (query.printStats) {
+                query.connector.getStats().print(System.err);
+            }
+            
+            // Disconnect from JMX Cleanly
+            query.connector.disconnect(); 
+        }
+    }
+
+    /**
+     * Writes an error after any metrics already written and exits. JSON and 
+     * binary output are finished off so what's been written can still be 
+     * parsed, see JSONWriter.fail() and BinaryMetricWriter.fail().
+     * 
+     * @param writer    The writer the metrics were being written to
+     * @param out       The text output, flushed so the error comes after the metrics
+     * @param error     The error type, i.e. query-connection-error
+     * @param message   The error message
+     * @param text      The error to write for text output
+     */
+    private static void fail(MetricWriter writer, Writer out, String error, String message, String text) {
+        try {
+            if (writer instanceof JSONWriter) {
+                ((JSONWriter) writer).fail(error, message);
+            } else if (writer instanceof BinaryMetricWriter) {
+                ((BinaryMetricWriter) writer).fail(error, message);
             } else {
-                System.out.println("An exception was thrown while running the query '" + query.metrics.toString() + "': " + e.getMessage());
-                System.out.println(Arrays.toString(e.getStackTrace()));
-                System.exit(2);
+                out.flush();
+                System.out.println(text);
+            }
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+        System.exit(2);
+    }
+
+    /**
+     * Collect from all the targets listed in the targets file at once
+     */
+    private void runTargets() throws Exception {
+        
+        ArrayList<JMXTarget> targets = readTargets(targetsFile);
+        
+        // Stop RMI reads on a hung target outliving its deadline for too long
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(timeout));
+        }
+        
+        JMXFanOut fanOut = new JMXFanOut(parallel, timeout, metrics);
+        fanOut.setSelfMetrics(selfMetrics);
+        fanOut.run(targets, System.out, outputJSON);
+    }
+
+    /**
+     * Poll the query groups in the schedule file at their intervals until killed
+     */
+    private void runSchedule() throws Exception {
+        
+        ArrayList<JMXTarget> groups = readTargets(scheduleFile);
+        for (JMXTarget group : groups) {
+            if (group.getUrl() == null) {
+                throw new ParseError("No url given for schedule group " + group.getName());
+            }
+            if (group.getMetrics().isEmpty()) {
+                group.getMetrics().addAll(metrics);
             }
         }
         
-        // Disconnect from JMX Cleanly
-        query.connector.disconnect(); 
+        JMXConnectorPool pool = new JMXConnectorPool(idleTimeout);
+        pool.setConcurrency(concurrency);
+        pool.setSelfMetrics(selfMetrics);
+        JMXScheduler scheduler = new JMXScheduler(pool, parallel);
+        if (keyframeInterval > 0) {
+            scheduler.setChanges(new ChangeStore(keyframeInterval, CounterStore.DEFAULT_MAX_AGE));
+        }
+        if (historySamples > 0) {
+            scheduler.setHistory(new TimeSeriesStore(TimeSeriesStore.DEFAULT_MAX_SERIES, historySamples));
+        }
+        
+        // Answer requests, including window requests on the history, on the same connections
+        if (daemonPort >= 0) {
+            final JMXDaemon daemon = new JMXDaemon(daemonPort, new JMXTarget(url, username, password), pool);
+            daemon.setHistory(scheduler.getHistory());
+            Thread daemonThread = new Thread("jmxquery-daemon") {
+                @Override
+                public void run() {
+                    try {
+                        daemon.run(JMXConnectorPool.DEFAULT_PROBE_INTERVAL);
+                    } catch (IOException e) {
+                        System.err.println("Error running daemon: " + e.getMessage());
+                    }
+                }
+            };
+            daemonThread.setDaemon(true);
+            daemonThread.start();
+        }
+        
+        scheduler.run(groups, System.out, outputJSON, JMXConnectorPool.DEFAULT_PROBE_INTERVAL);
+    }
+    
+    /**
+     * Read all the target blocks in a file, using the -url, -username and 
+     * -password options for targets without a url
+     * 
+     * @param file  The file to read
+     * @return      The targets read
+     */
+    private ArrayList<JMXTarget> readTargets(String file) throws IOException, ParseError {
+        ArrayList<JMXTarget> targets = new ArrayList<JMXTarget>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            JMXTarget defaults = new JMXTarget(url, username, password);
+            JMXTarget target;
+            while ((target = JMXTarget.read(reader, defaults)) != null) {
+                targets.add(target);
+            }
+        } finally {
+            reader.close();
+        }
+        return targets;
     }
 
     /**
@@ -181,6 +381,8 @@ public class JMXQuery {
                     username = args[++i];
                 } else if (option.equals("-password") || option.equals("-p")) {
                     password = args[++i];
+                } else if (option.equals("-perfdata")) {
+                    perfDataPid = args[++i];
                 } else if (option.equals("-query") || option.equals("-q")) {
                     
                     // Parse query string to break up string in format:
@@ -192,13 +394,47 @@ public class JMXQuery {
                 
                 } else if (option.equals("-json")) {
                     outputJSON = true;
+                } else if (option.equals("-openmetrics")) {
+                    outputOpenMetrics = true;
+                } else if (option.equals("-binary")) {
+                    outputBinary = true;
+                } else if (option.equals("-stats")) {
+                    printStats = true;
+                } else if (option.equals("-selfmetrics")) {
+                    selfMetrics = true;
                 } else if (option.equals("-incjvm")) {
                     includeJVMStats();
+                } else if (option.equals("-concurrency") || option.equals("-c")) {
+                    concurrency = Integer.parseInt(args[++i]);
+                } else if (option.equals("-daemon")) {
+                    daemonPort = Integer.parseInt(args[++i]);
+                } else if (option.equals("-batch")) {
+                    batch = true;
+                } else if (option.equals("-subscribe")) {
+                    subscribe = true;
+                } else if (option.equals("-queuesize")) {
+                    queueSize = Integer.parseInt(args[++i]);
+                } else if (option.equals("-block")) {
+                    block = true;
+                } else if (option.equals("-targets")) {
+                    targetsFile = args[++i];
+                } else if (option.equals("-schedule")) {
+                    scheduleFile = args[++i];
+                } else if (option.equals("-changesonly")) {
+                    keyframeInterval = Integer.parseInt(args[++i]);
+                } else if (option.equals("-history")) {
+                    historySamples = Integer.parseInt(args[++i]);
+                } else if (option.equals("-parallel")) {
+                    parallel = Integer.parseInt(args[++i]);
+                } else if (option.equals("-timeout")) {
+                    timeout = (long) (Double.parseDouble(args[++i]) * 1000);
+                } else if (option.equals("-idletimeout")) {
+                    idleTimeout = Long.parseLong(args[++i]) * 1000;
                 }
             }
             
             // Check that required parameters are given
-            if (url == null && (metrics.size() > 1)) {
+            if (url == null && perfDataPid == null && (metrics.size() > 1)) {
                 System.out.println("Required options not specified.");
                 printHelp(System.out);
                 System.exit(0);
@@ -0,0 +1,253 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MalformedObjectNameException;
+
+/**
+ * Polls groups of queries at their own intervals until stopped, i.e. thread
+ * counts every 5 seconds and class loading every minute. Groups are read in
+ * the JMXTarget format with an interval key, and groups for the same JVM share
+ * one pooled connection.
+ *
+ * Each group starts at a random point within its first interval so groups and
+ * collectors started together don't all poll at the same moment. If a poll is
+ * still running when the group is next due, that run is skipped rather than
+ * queued, so a slow JVM isn't sent more work while it's struggling.
+ *
+ * In JSON mode each poll is written as a single line:
+ *
+ * {"group" : "name", "time" : 1500000000000, "metrics" : [...]}
+ * {"group" : "name", "time" : 1500000000000, "error" : "connection-error", "message" : "..."}
+ *
+ * With setChanges() only values that changed since the last poll are written,
+ * with each group written in full every N polls.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JMXScheduler {
+
+    /**
+     * Default time between polls for groups that don't set an interval
+     */
+    public static final long DEFAULT_INTERVAL = 60 * 1000;
+
+    private final JMXConnectorPool pool;
+    private final int parallel;
+    private final CounterStore counters = new CounterStore(CounterStore.DEFAULT_MAX_AGE);
+    private final Random random = new Random();
+    private final AtomicLong skipped = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private TimeSeriesStore history = null;
+    private ChangeStore changes = null;
+
+    /**
+     * @param pool          Pool to keep the JMX connections in
+     * @param parallel      Maximum number of groups to poll at the same time
+     */
+    public JMXScheduler(JMXConnectorPool pool, int parallel) {
+        this.pool = pool;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Keep the values polled in a store so they can be queried over a window
+     *
+     * @param history   The store to record values in, null to not keep them
+     */
+    public void setHistory(TimeSeriesStore history) {
+        this.history = history;
+    }
+
+    /**
+     * @return  The store values are recorded in, null if they aren't kept
+     */
+    public TimeSeriesStore getHistory() {
+        return history;
+    }
+
+    /**
+     * Only write the values that have changed since the group's last poll,
+     * with every group written in full as a keyframe every N polls. In JSON
+     * mode keyframe polls are marked with "keyframe" : true.
+     *
+     * @param changes   The store to keep the last values written in, null to write every value
+     */
+    public void setChanges(ChangeStore changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * @return  The store the last values written are kept in, null if every value is written
+     */
+    public ChangeStore getChanges() {
+        return changes;
+    }
+
+    /**
+     * Poll the groups until stop() is called
+     *
+     * @param groups                The query groups to poll
+     * @param out                   Stream to write results to
+     * @param outputJSON            Write JSON lines instead of human readable text
+     * @param maintenancePeriod     Milliseconds between connection health checks
+     * @throws InterruptedException
+     */
+    public void run(List<JMXTarget> groups, final PrintStream out, final boolean outputJSON,
+            long maintenancePeriod) throws InterruptedException {
+
+        for (JMXTarget group : groups) {
+            pool.warm(group.getUrl(), group.getUsername(), group.getPassword());
+        }
+        pool.startMaintenance(maintenancePeriod);
+
+        final ExecutorService workers = Executors.newFixedThreadPool(parallel, 
+                new DaemonThreadFactory("jmxquery-poll-"));
+        ScheduledExecutorService ticks = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("jmxquery-schedule-"));
+
+        try {
+            for (final JMXTarget group : groups) {
+                long interval = (group.getInterval() > 0) ? group.getInterval() : DEFAULT_INTERVAL;
+                final AtomicBoolean running = new AtomicBoolean(false);
+                ticks.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        if (!running.compareAndSet(false, true)) {
+                            skipped.incrementAndGet();
+                            return;
+                        }
+                        workers.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    String result = poll(group, outputJSON);
+                                    if (result.length() == 0) {
+                                        // Nothing changed since the last poll
+                                        return;
+                                    }
+                                    synchronized (out) {
+                                        out.println(result);
+                                        out.flush();
+                                    }
+                                } finally {
+                                    running.set(false);
+                                }
+                            }
+                        });
+                    }
+                }, jitter(interval), interval, TimeUnit.MILLISECONDS);
+            }
+            stopped.await();
+        } finally {
+            ticks.shutdownNow();
+            workers.shutdownNow();
+            pool.close();
+        }
+    }
+
+    /**
+     * Stop polling
+     */
+    public void stop() {
+        stopped.countDown();
+    }
+
+    /**
+     * @return  The number of polls skipped because the last poll of the group was still running
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Run a group's queries on its pooled connection
+     *
+     * @param group         The group to poll
+     * @param outputJSON    Format the result as a JSON line
+     * @return              The formatted result
+     */
+    private String poll(JMXTarget group, boolean outputJSON) {
+
+        long time = System.currentTimeMillis();
+
+        JMXConnector connector;
+        try {
+            connector = pool.acquire(group.getUrl(), group.getUsername(), group.getPassword());
+        } catch (IOException e) {
+            return error(group, time, "connection-error", e.getMessage(), outputJSON);
+        }
+
+        try {
+            StringWriter result = new StringWriter();
+            if (outputJSON) {
+                result.write("{\"group\" : \"" + JSONWriter.escape(group.getName()) + "\", \"time\" : " + time
+                        + ", \"metrics\" : ");
+                MetricWriter writer = filter(new JSONWriter(result, false), group);
+                connector.getMetrics(group.getMetrics(), record(group, writer));
+                if (writer instanceof ChangeWriter && ((ChangeWriter) writer).isKeyframe()) {
+                    result.write(", \"keyframe\" : true");
+                }
+                result.write("}");
+            } else {
+                connector.getMetrics(group.getMetrics(), 
+                        record(group, filter(new TextWriter(result, group.getName(), false), group)));
+            }
+            return result.toString();
+        } catch (IOException e) {
+            // Reconnected on the next poll
+            pool.invalidate(connector);
+            return error(group, time, "query-connection-error", e.getMessage(), outputJSON);
+        } catch (MalformedObjectNameException e) {
+            return error(group, time, "bad-query", e.getMessage(), outputJSON);
+        } catch (Exception e) {
+            return error(group, time, "general-exception", e.getMessage(), outputJSON);
+        } finally {
+            pool.release(connector);
+        }
+    }
+
+    /**
+     * @param group     The group being polled
+     * @param writer    The writer for the poll's output
+     * @return          The writer wrapped to work out counter rates and keep history
+     */
+    private MetricWriter record(JMXTarget group, MetricWriter writer) {
+        MetricWriter counted = new CounterWriter(writer, counters, group.getUrl());
+        return (history != null) ? new TimeSeriesWriter(counted, history, group.getUrl()) : counted;
+    }
+
+    /**
+     * @param writer    The writer for the poll's output
+     * @param group     The group being polled
+     * @return          The writer wrapped to leave out unchanged values if only changes are written
+     */
+    private MetricWriter filter(MetricWriter writer, JMXTarget group) {
+        return (changes != null) ? new ChangeWriter(writer, changes, group.getName()) : writer;
+    }
+
+    /**
+     * @param interval  Milliseconds between polls
+     * @return          A random delay within the first interval
+     */
+    private synchronized long jitter(long interval) {
+        return (long) (random.nextDouble() * interval);
+    }
+
+    private static String error(JMXTarget group, long time, String error, String message, boolean outputJSON) {
+        if (outputJSON) {
+            return "{\"group\" : \"" + JSONWriter.escape(group.getName()) + "\", \"time\" : " + time
+                    + ", \"error\" : \"" + error + "\", \"message\" : \"" 
+                    + JSONWriter.escape(String.valueOf(message)) + "\"}";
+        }
+        return group.getName() + " Error (" + error + "): " + message;
+    }
+}
@@ -0,0 +1,395 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.AttributeChangeNotification;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXConnectionNotification;
+
+/**
+ * Subscribes to the notifications sent by the MBeans matching each query, 
+ * i.e. GC completion or memory pool thresholds being crossed, and writes each
+ * notification as it arrives instead of polling. Catches short lived events
+ * that polling would miss.
+ *
+ * Queries are given as {mBeanName}/{type}/{key}. The type is a notification
+ * type prefix, i.e. com.sun.management.gc.notification, and is left out or *
+ * for all notifications. It is sent to the MBean server as a filter so only
+ * wanted notifications are sent back. MBeans registered after subscribing 
+ * are subscribed to as well if they match the query and its predicates, 
+ * including MBeans unregistered and registered again under the same name.
+ *
+ * Each notification becomes a metric for each value in its user data. 
+ * Composite data is flattened with its nested keys joined by dots, i.e. 
+ * gcInfo.duration, and the key selects a single value. Attribute change 
+ * notifications are keyed by the attribute name with its new value.
+ *
+ * Notifications are handed from the listener to the writer through a bounded
+ * queue. When the queue is full they are either dropped and counted, or the
+ * listener blocks until there is room. Blocking a remote listener makes the
+ * server buffer notifications instead, and it discards the oldest when its
+ * buffer is full, which is counted as lost.
+ *
+ * In JSON mode each notification is written as a single line:
+ *
+ * {"time" : 1500000000000, "sequence" : 12, "metrics" : [...]}
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JMXSubscriber {
+
+    /**
+     * Default number of notifications held waiting to be written
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private final JMXConnector connector;
+    private final BlockingQueue<Event> queue;
+    private final boolean block;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final Map<ObjectName, JMXMetric> subscribed = new HashMap<ObjectName, JMXMetric>();
+    private final ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+    private final Map<JMXMetric, QueryExp> filters = new HashMap<JMXMetric, QueryExp>();
+    private final ExecutorService registrations = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("jmxquery-subscribe-"));
+    private volatile boolean stopped = false;
+
+    private final NotificationListener listener = new NotificationListener() {
+        public void handleNotification(Notification notification, Object handback) {
+            received.incrementAndGet();
+            Event event = new Event((ObjectName) handback, notification);
+            if (!block) {
+                if (!queue.offer(event)) {
+                    dropped.incrementAndGet();
+                }
+                return;
+            }
+            try {
+                queue.put(event);
+            } catch (InterruptedException e) {
+                dropped.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    private final NotificationListener registered = new NotificationListener() {
+        public void handleNotification(final Notification notification, Object handback) {
+            final ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+            // Subscribing calls the server, so isn't done on the notification thread
+            registrations.execute(new Runnable() {
+                public void run() {
+                    synchronized (subscribed) {
+                        if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                            // The server drops its listeners, and a new MBean with the name is subscribed again
+                            subscribed.remove(name);
+                            return;
+                        }
+                        for (JMXMetric query : queries) {
+                            if (query.getObjectName().apply(name) && matches(name, filters.get(query))) {
+                                subscribe(name, query);
+                                break;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * @param connector     The connection to subscribe on
+     * @param queueSize     Number of notifications that can wait to be written
+     * @param block         Block the listener when the queue is full instead of dropping notifications
+     */
+    public JMXSubscriber(JMXConnector connector, int queueSize, boolean block) {
+        this.connector = connector;
+        this.queue = new ArrayBlockingQueue<Event>(queueSize);
+        this.block = block;
+    }
+
+    /**
+     * Subscribe to the MBeans matching each query, and to any matching MBeans 
+     * registered later
+     *
+     * @param metricQueries     The queries to subscribe to
+     * @return                  The number of MBeans subscribed to
+     * @throws IOException
+     * @throws MalformedObjectNameException 
+     */
+    public int subscribe(ArrayList<JMXMetric> metricQueries) throws IOException, MalformedObjectNameException {
+
+        MBeanServerConnection connection = connector.getConnection();
+        synchronized (subscribed) {
+            if (queries.isEmpty()) {
+                connector.addConnectionNotificationListener(new NotificationListener() {
+                    public void handleNotification(Notification notification, Object handback) {
+                        lost.addAndGet((Long) notification.getUserData());
+                    }
+                }, filter(JMXConnectionNotification.NOTIFS_LOST), null);
+                NotificationFilterSupport registrationTypes = filter(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+                registrationTypes.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+                try {
+                    connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registered, 
+                            registrationTypes, null);
+                } catch (InstanceNotFoundException e) {
+                    // Always registered
+                }
+            }
+
+            for (JMXMetric query : metricQueries) {
+                ObjectName pattern = new ObjectName(query.getmBeanName());
+                JMXMetric subscription = query.newResult(pattern, query.getmBeanName(), 
+                        query.getAttribute(), query.getAttributeKey());
+                queries.add(subscription);
+                filters.put(subscription, query.getFilterExp());
+                for (ObjectName name : connection.queryNames(pattern, query.getFilterExp())) {
+                    subscribe(name, subscription);
+                }
+            }
+            return subscribed.size();
+        }
+    }
+
+    /**
+     * Subscribe to a single MBean, skipping MBeans that don't send 
+     * notifications or are already subscribed to
+     */
+    private void subscribe(ObjectName name, JMXMetric query) {
+        if (subscribed.containsKey(name)) {
+            return;
+        }
+        String type = query.getAttribute();
+        try {
+            connector.getConnection().addNotificationListener(name, listener, 
+                    (type == null || type.equals("*")) ? null : filter(type), name);
+            subscribed.put(name, query);
+        } catch (JMException e) {
+            // Doesn't send notifications or has gone
+        } catch (IOException e) {
+            // Connection broken, nothing more will arrive
+        } catch (RuntimeException e) {
+            // MBeans that don't send notifications are refused with an IllegalArgumentException
+        }
+    }
+
+    /**
+     * Checks a newly registered MBean against a query's predicates on the server
+     *
+     * @param name      The MBean registered
+     * @param filter    The query's predicates, null if it has none
+     * @return          true if the MBean matches the predicates
+     */
+    private boolean matches(ObjectName name, QueryExp filter) {
+        if (filter == null) {
+            return true;
+        }
+        try {
+            return !connector.getConnection().queryNames(name, filter).isEmpty();
+        } catch (IOException e) {
+            // Connection broken, nothing more will arrive
+            return false;
+        }
+    }
+
+    private static NotificationFilterSupport filter(String type) {
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(type);
+        return filter;
+    }
+
+    /**
+     * Write each notification until stop() is called
+     *
+     * @param out           Stream to write notifications to
+     * @param outputJSON    Write JSON lines instead of human readable text
+     * @throws InterruptedException 
+     */
+    public void run(PrintStream out, boolean outputJSON) throws InterruptedException {
+        while (!stopped) {
+            Event event = queue.poll(1, TimeUnit.SECONDS);
+            if (event == null) {
+                continue;
+            }
+            StringWriter result = new StringWriter();
+            try {
+                if (outputJSON) {
+                    result.write("{\"time\" : " + event.notification.getTimeStamp() + ", \"sequence\" : " 
+                            + event.notification.getSequenceNumber() + ", \"metrics\" : ");
+                    write(event, new JSONWriter(result, false));
+                    result.write("}");
+                } else {
+                    write(event, new TextWriter(result, String.valueOf(event.notification.getTimeStamp()), false));
+                }
+            } catch (IOException e) {
+                // Writing to a string
+            }
+            out.println(result.toString());
+            out.flush();
+        }
+    }
+
+    /**
+     * Write all the notifications waiting, waiting for the first one if none are
+     *
+     * @param writer    Writer to send the metrics for all the notifications to
+     * @param timeout   Milliseconds to wait for the first notification
+     * @return          The number of notifications written
+     * @throws IOException
+     * @throws InterruptedException 
+     */
+    public int drain(MetricWriter writer, long timeout) throws IOException, InterruptedException {
+        writer.begin();
+        int count = 0;
+        Event event = queue.poll(timeout, TimeUnit.MILLISECONDS);
+        while (event != null) {
+            writeMetrics(event, writer);
+            count++;
+            event = queue.poll();
+        }
+        writer.end();
+        return count;
+    }
+
+    /**
+     * Stop writing notifications and remove the listeners
+     */
+    public void stop() {
+        stopped = true;
+        registrations.shutdownNow();
+        MBeanServerConnection connection = connector.getConnection();
+        synchronized (subscribed) {
+            try {
+                connection.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registered);
+            } catch (Exception e) {
+                // Removing anyway
+            }
+            for (ObjectName name : subscribed.keySet()) {
+                try {
+                    connection.removeNotificationListener(name, listener);
+                } catch (Exception e) {
+                    // Removing anyway
+                }
+            }
+            subscribed.clear();
+            queries.clear();
+            filters.clear();
+        }
+    }
+
+    /**
+     * @return  The number of notifications received
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return  The number of notifications dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return  The number of notifications the server discarded before they were sent
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    private void write(Event event, MetricWriter writer) throws IOException {
+        writer.begin();
+        writeMetrics(event, writer);
+        writer.end();
+    }
+
+    /**
+     * Write a metric for each value in the notification
+     */
+    private void writeMetrics(Event event, MetricWriter writer) throws IOException {
+        JMXMetric query;
+        synchronized (subscribed) {
+            query = subscribed.get(event.name);
+        }
+        if (query == null) {
+            // Unsubscribed since it was sent
+            return;
+        }
+
+        Notification notification = event.notification;
+        Object data = notification.getUserData();
+        if (notification instanceof AttributeChangeNotification) {
+            AttributeChangeNotification change = (AttributeChangeNotification) notification;
+            writeValue(event, query, change.getAttributeName(), change.getNewValue(), writer);
+        } else if (data instanceof CompositeData) {
+            writeComposite(event, query, null, (CompositeData) data, writer);
+        } else if (data != null) {
+            writeValue(event, query, null, data, writer);
+        } else {
+            writeValue(event, query, null, notification.getMessage(), writer);
+        }
+    }
+
+    private void writeComposite(Event event, JMXMetric query, String prefix, CompositeData data,
+            MetricWriter writer) throws IOException {
+        for (String key : data.getCompositeType().keySet()) {
+            String path = (prefix != null) ? prefix + "." + key : key;
+            Object value = data.get(key);
+            if (value instanceof CompositeData) {
+                writeComposite(event, query, path, (CompositeData) value, writer);
+            } else if (!(value instanceof TabularData)) {
+                writeValue(event, query, path, value, writer);
+            }
+        }
+    }
+
+    private void writeValue(Event event, JMXMetric query, String key, Object value, MetricWriter writer) 
+            throws IOException {
+        if (query.getAttributeKey() != null && !query.getAttributeKey().equals(key)) {
+            return;
+        }
+        JMXMetric metric = query.newResult(event.name, event.name.toString(), event.notification.getType(), key);
+        metric.setAttributeType(value);
+        metric.setValue(value);
+        writer.write(metric);
+    }
+
+    /**
+     * A notification waiting to be written, with the MBean it was subscribed on
+     */
+    private static class Event {
+
+        private final ObjectName name;
+        private final Notification notification;
+
+        Event(ObjectName name, Notification notification) {
+            this.name = name;
+            this.notification = notification;
+        }
+    }
+}
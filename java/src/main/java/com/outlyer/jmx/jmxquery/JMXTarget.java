@@ -0,0 +1,298 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A JMX endpoint with its credentials and the metric queries to run against it.
+ * Targets are read as blocks of key=value lines ended by a blank line:
+ *
+ * url=service:jmx:rmi:///jndi/rmi://localhost:1616/jmxrmi
+ * username=admin
+ * password=secret
+ * query=java.lang:type=Memory/HeapMemoryUsage/used;java.lang:type=Threading/ThreadCount
+ *
+ * The query key can be repeated and uses the same format as the -query option.
+ * Optional keys are name, a label to tag the target's results with instead of
+ * its url, timeout, the seconds allowed to collect from the target, and 
+ * interval, the seconds between polls when the target is scheduled, and
+ * window, the seconds of recorded history to summarise for each metric when
+ * sent to a daemon keeping history, see JMXDaemon.
+ * Lines starting with # are ignored. Lines can be at most MAX_LINE_LENGTH 
+ * characters long.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JMXTarget {
+
+    /**
+     * Longest key=value line accepted, longer lines are a parse error
+     */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Returned by readLine() for lines that are too long, compared by reference
+    private static final String TOO_LONG = new String("too long");
+
+    private String name = null;
+    private String url = null;
+    private String username = null;
+    private String password = null;
+    private long timeout = 0;
+    private long interval = 0;
+    private long window = 0;
+    private final ArrayList<JMXMetric> metrics = new ArrayList<JMXMetric>();
+
+    public JMXTarget() {
+    }
+
+    public JMXTarget(String url, String username, String password) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * @return  The name given to the target, or its url if no name was given
+     */
+    public String getName() {
+        return (name != null) ? name : url;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * @return  Milliseconds allowed to collect from the target, 0 if not set
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return  Milliseconds between polls when scheduled, 0 if not set
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @return  Milliseconds of history to summarise for each metric, 0 if not set
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    public ArrayList<JMXMetric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Parses a list of queries in the -query format and adds them to the target
+     *
+     * @param queries       Queries separated by semi-colons
+     * @throws ParseError
+     */
+    public void addQueries(String queries) throws ParseError {
+        for (String metricQuery : queries.split(";")) {
+            if (metricQuery.trim().length() > 0) {
+                metrics.add(new JMXMetric(metricQuery.trim()));
+            }
+        }
+    }
+
+    /**
+     * Sets a single key=value option on the target
+     *
+     * @param key       The option name
+     * @param value     The option value
+     * @throws ParseError   If the option isn't known or the value is invalid
+     */
+    protected void setOption(String key, String value) throws ParseError {
+        if (key.equals("name")) {
+            name = value;
+        } else if (key.equals("url")) {
+            url = value;
+        } else if (key.equals("username")) {
+            username = value;
+        } else if (key.equals("password")) {
+            password = value;
+        } else if (key.equals("query")) {
+            addQueries(value);
+        } else if (key.equals("timeout")) {
+            try {
+                timeout = (long) (Double.parseDouble(value) * 1000);
+            } catch (NumberFormatException e) {
+                throw new ParseError("Target timeout " + value + " is not a number.");
+            }
+        } else if (key.equals("interval")) {
+            try {
+                interval = (long) (Double.parseDouble(value) * 1000);
+            } catch (NumberFormatException e) {
+                throw new ParseError("Target interval " + value + " is not a number.");
+            }
+            if (interval <= 0) {
+                throw new ParseError("Target interval " + value + " must be more than 0.");
+            }
+        } else if (key.equals("window")) {
+            try {
+                window = (long) (Double.parseDouble(value) * 1000);
+            } catch (NumberFormatException e) {
+                throw new ParseError("Target window " + value + " is not a number.");
+            }
+            if (window <= 0) {
+                throw new ParseError("Target window " + value + " must be more than 0.");
+            }
+        } else {
+            throw new ParseError("Unknown target option: " + key);
+        }
+    }
+
+    /**
+     * Reads the next target block from a reader. If the block is invalid the
+     * rest of it is still read up to the blank line that ends it, so the 
+     * next block is read from the right place.
+     *
+     * @param reader    The reader to read key=value lines from
+     * @param defaults  Target to take the url, username and password from if
+     *                  not set in the block, can be null
+     * @return          The target read, null if the end of the stream was reached first
+     * @throws IOException
+     * @throws ParseError   If any line of the block is invalid, after the whole block is read
+     */
+    public static JMXTarget read(BufferedReader reader, JMXTarget defaults) throws IOException, ParseError {
+
+        JMXTarget target = null;
+        ParseError error = null;
+        boolean started = false;
+
+        String line;
+        while ((line = readLine(reader)) != null) {
+            if (line == TOO_LONG) {
+                if (error == null) {
+                    error = new ParseError("Target line is longer than " + MAX_LINE_LENGTH + " characters.");
+                }
+                started = true;
+                continue;
+            }
+            line = line.trim();
+            if (line.length() == 0) {
+                if (started) {
+                    break;
+                }
+                continue;
+            }
+            if (line.startsWith("#")) {
+                continue;
+            }
+            started = true;
+            if (error != null) {
+                // Only the first error is reported, the rest of the block is skipped
+                continue;
+            }
+
+            int seperator = line.indexOf('=');
+            if (seperator < 1) {
+                error = new ParseError("Target line '" + line + "' is not in key=value format.");
+                continue;
+            }
+            if (target == null) {
+                target = new JMXTarget();
+            }
+            try {
+                target.setOption(line.substring(0, seperator).trim(), line.substring(seperator + 1).trim());
+            } catch (ParseError e) {
+                error = e;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+
+        if (target != null && defaults != null) {
+            if (target.url == null) {
+                target.url = defaults.url;
+                if (target.username == null) {
+                    target.username = defaults.username;
+                    target.password = defaults.password;
+                }
+            }
+        }
+
+        return target;
+    }
+
+    /**
+     * Reads a line without holding more than MAX_LINE_LENGTH characters of it
+     *
+     * @param reader    The reader to read from
+     * @return          The line without its line ending, TOO_LONG if it was too 
+     *                  long, null at the end of the stream
+     * @throws IOException
+     */
+    private static String readLine(BufferedReader reader) throws IOException {
+        StringBuilder line = new StringBuilder();
+        boolean tooLong = false;
+        int c;
+        while ((c = reader.read()) != -1 && c != '\n') {
+            if (line.length() < MAX_LINE_LENGTH) {
+                line.append((char) c);
+            } else {
+                tooLong = true;
+            }
+        }
+        if (tooLong) {
+            return TOO_LONG;
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+            line.setLength(line.length() - 1);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
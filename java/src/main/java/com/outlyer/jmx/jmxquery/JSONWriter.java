@@ -0,0 +1,257 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes metrics as a JSON array straight to an output stream as each one is
+ * found, so the size of the result doesn't change how much memory is used.
+ * All strings are escaped so names and values with quotes, backslashes or
+ * control characters still give valid JSON.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class JSONWriter implements MetricWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private final boolean multiline;
+    private int count = 0;
+    private boolean open = false;
+
+    /**
+     * @param out           Where to write the JSON, should be buffered
+     * @param multiline     Put each metric on its own line, otherwise write the whole array on one line
+     */
+    public JSONWriter(Writer out, boolean multiline) {
+        this.out = out;
+        this.multiline = multiline;
+    }
+
+    public void begin() throws IOException {
+        count = 0;
+        open = true;
+        out.write(multiline ? "[\n" : "[");
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+        metric.replaceTokens();
+        if (count++ > 0) {
+            out.write(multiline ? ", \n" : ", ");
+        }
+        write(out, metric);
+    }
+
+    public void end() throws IOException {
+        out.write(multiline ? "]\n" : "]");
+        out.flush();
+        open = false;
+    }
+
+    /**
+     * Ends the output with an error in the same format as error(), so what's
+     * written is still valid JSON when a query fails part way through. If the
+     * array has been started the error is added as its last element and the
+     * array is closed, otherwise the error is written on its own.
+     *
+     * @param error     The error type, i.e. query-connection-error
+     * @param message   The error message
+     * @throws IOException
+     */
+    public void fail(String error, String message) throws IOException {
+        if (open) {
+            if (count > 0) {
+                out.write(multiline ? ", \n" : ", ");
+            }
+            out.write(error(error, message));
+            end();
+        } else {
+            out.write(error(error, message));
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    /**
+     * @return  The number of metrics written
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Write a single metric as a JSON object
+     *
+     * @param out       Where to write the JSON
+     * @param metric    The metric to write
+     * @throws IOException
+     */
+    static void write(Writer out, JMXMetric metric) throws IOException {
+        out.write('{');
+        if (metric.getmetricName() != null) {
+            field(out, "metricName", metric.getmetricName());
+            out.write(",\"metricLabels\" : {");
+            int keyCount = 0;
+            for (Map.Entry<String, String> label : metric.getmetricLabels().entrySet()) {
+                if (keyCount++ > 0) {
+                    out.write(',');
+                }
+                field(out, label.getKey(), label.getValue());
+            }
+            out.write("},");
+        }
+        field(out, "mBeanName", metric.getmBeanName());
+        out.write(", ");
+        field(out, "attribute", metric.getAttribute());
+        if (metric.getAttributeKey() != null) {
+            out.write(", ");
+            field(out, "attributeKey", metric.getAttributeKey());
+        }
+        if (metric.getAttributeType() != null) {
+            out.write(", ");
+            field(out, "attributeType", metric.getAttributeType());
+        }
+        Object value = metric.getValue();
+        if (value != null) {
+            if ((value instanceof Integer) ||
+                    (value instanceof Long) ||
+                    (value instanceof Double) ||
+                    (value instanceof Boolean)) {
+                out.write(", \"value\" : ");
+                out.write(value.toString());
+            } else {
+                out.write(", ");
+                field(out, "value", value.toString());
+            }
+        }
+        if (metric.getError() != null) {
+            out.write(", ");
+            field(out, "error", metric.getError());
+        }
+        if (metric.getMetricType() != null) {
+            out.write(", ");
+            field(out, "metricType", metric.getMetricType());
+        }
+        if (metric.getDelta() != null) {
+            out.write(", \"delta\" : ");
+            out.write(metric.getDelta().toString());
+        }
+        if (metric.getRate() != null) {
+            out.write(", \"rate\" : ");
+            out.write(metric.getRate().toString());
+        }
+        TimeSeriesStore.WindowStats window = metric.getWindow();
+        if (window != null) {
+            out.write(", \"window\" : {\"count\" : ");
+            out.write(String.valueOf(window.getCount()));
+            if (window.getCount() > 0) {
+                out.write(", \"min\" : " + window.getMin() + ", \"max\" : " + window.getMax() 
+                        + ", \"avg\" : " + window.getAvg() + ", \"last\" : " + window.getLast());
+            }
+            out.write('}');
+        }
+        out.write('}');
+    }
+
+    /**
+     * @param metric    The metric to convert
+     * @return          The metric as a JSON object
+     */
+    static String toJSON(JMXMetric metric) {
+        StringWriter json = new StringWriter();
+        try {
+            write(json, metric);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+        }
+        return json.toString();
+    }
+
+    /**
+     * Formats an error in the same format the command line uses
+     *
+     * @param error     The error type, i.e. connection-error
+     * @param message   The error message
+     * @return          The error as a single line JSON object
+     */
+    public static String error(String error, String message) {
+        return "{ \"error\": \"" + escape(error) + "\", \"message\":\"" + escape(String.valueOf(message)) + "\"}";
+    }
+
+    /**
+     * @param value     The string to escape
+     * @return          The string escaped for use inside JSON quotes
+     */
+    public static String escape(String value) {
+        StringWriter escaped = new StringWriter(value.length() + 8);
+        try {
+            escape(escaped, value);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+        }
+        return escaped.toString();
+    }
+
+    private static void field(Writer out, String name, String value) throws IOException {
+        out.write('"');
+        escape(out, name);
+        out.write("\" : ");
+        if (value == null) {
+            out.write("null");
+        } else {
+            out.write('"');
+            escape(out, value);
+            out.write('"');
+        }
+    }
+
+    /**
+     * Writes a string escaped for use inside JSON quotes, copying runs of
+     * characters that don't need escaping in one go
+     */
+    private static void escape(Writer out, String value) throws IOException {
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.write(value, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                default:
+                    out.write("\\u");
+                    out.write(HEX[(c >> 12) & 0xF]);
+                    out.write(HEX[(c >> 8) & 0xF]);
+                    out.write(HEX[(c >> 4) & 0xF]);
+                    out.write(HEX[c & 0xF]);
+            }
+        }
+        out.write(value, start, length - start);
+    }
+}
@@ -0,0 +1,236 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+
+/**
+ * Caches MBean metadata and the MBean names matched by query patterns for a
+ * connection so repeat queries don't need to fetch them again. Attribute 
+ * metadata is evicted when the MBeanServerDelegate reports that the MBean was
+ * unregistered or registered again, and matched names are updated from the 
+ * same notifications. Both expire after a TTL in case a notification is 
+ * missed. Matched names are only cached while the listener is added.
+ *
+ * Entries fetched while a registration notification arrives aren't kept, as
+ * they may have been read before the MBean changed. A generation count is
+ * moved on by each notification and checked again after each fetch.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class MBeanCache implements NotificationListener {
+
+    /**
+     * Default time to keep metadata for if no notification evicts it first
+     */
+    public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+    private final MBeanServerConnection connection;
+    private final long ttl;
+    private final Map<ObjectName, CachedAttributes> attributes = new ConcurrentHashMap<ObjectName, CachedAttributes>();
+    private final Map<ObjectName, CachedNames> names = new ConcurrentHashMap<ObjectName, CachedNames>();
+    private final AtomicLong generation = new AtomicLong();
+    private boolean listening = false;
+
+    /**
+     * @param connection    The connection to cache metadata for
+     * @param ttl           Milliseconds to keep entries for, 0 to never expire them
+     */
+    public MBeanCache(MBeanServerConnection connection, long ttl) {
+        this.connection = connection;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Subscribe to MBean registration notifications so entries are evicted as
+     * soon as the MBean changes. If this fails the cache relies on the TTL only.
+     *
+     * @return  true if the listener was added
+     */
+    public boolean listen() {
+        try {
+            MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+            filter.enableAllObjectNames();
+            connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+            listening = true;
+        } catch (Exception e) {
+            listening = false;
+        }
+        return listening;
+    }
+
+    /**
+     * Remove the registration listener and empty the cache
+     */
+    public void close() {
+        if (listening) {
+            try {
+                connection.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (Exception e) {
+                // Connection is probably closed already
+            }
+            listening = false;
+        }
+        clear();
+    }
+
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * Empty the cache
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        attributes.clear();
+        names.clear();
+    }
+
+    /**
+     * Get the names of all the MBeans matching a pattern, only calling 
+     * queryNames the first time the pattern is used or if it has expired
+     *
+     * @param pattern   The ObjectName pattern to match
+     * @return          The matching MBean names
+     * @throws IOException
+     */
+    public Set<ObjectName> queryNames(ObjectName pattern) throws IOException {
+
+        if (!listening) {
+            // Can't see new MBeans without notifications so always query
+            return connection.queryNames(pattern, null);
+        }
+
+        long now = System.currentTimeMillis();
+        CachedNames cached = names.get(pattern);
+        if (cached != null && (ttl <= 0 || now - cached.timestamp < ttl)) {
+            synchronized (cached.names) {
+                return new HashSet<ObjectName>(cached.names);
+            }
+        }
+
+        long fetched = generation.get();
+        Set<ObjectName> found = connection.queryNames(pattern, null);
+        CachedNames entry = new CachedNames(new HashSet<ObjectName>(found), now);
+        names.put(pattern, entry);
+        if (generation.get() != fetched) {
+            // An MBean was registered or unregistered while querying
+            names.remove(pattern, entry);
+        }
+        return found;
+    }
+
+    /**
+     * Get the attribute metadata for an MBean, only calling getMBeanInfo if it
+     * isn't cached or has expired
+     *
+     * @param name  The MBean to get the attributes for
+     * @return      The MBean attribute metadata
+     * @throws InstanceNotFoundException
+     * @throws IntrospectionException
+     * @throws ReflectionException
+     * @throws IOException
+     */
+    public MBeanAttributeInfo[] getAttributes(ObjectName name) throws InstanceNotFoundException,
+            IntrospectionException, ReflectionException, IOException {
+
+        long now = System.currentTimeMillis();
+        CachedAttributes cached = attributes.get(name);
+        if (cached != null && (ttl <= 0 || now - cached.timestamp < ttl)) {
+            return cached.attributes;
+        }
+
+        long fetched = generation.get();
+        MBeanAttributeInfo[] info = connection.getMBeanInfo(name).getAttributes();
+        CachedAttributes entry = new CachedAttributes(info, now);
+        attributes.put(name, entry);
+        if (generation.get() != fetched) {
+            // The MBean may have been registered again since its info was read
+            attributes.remove(name, entry);
+        }
+        return info;
+    }
+
+    /**
+     * Handles MBeanServerDelegate registration notifications and connection
+     * notifications if added as a connection listener on a JMXConnector
+     *
+     * @param notification  The notification received
+     * @param handback      Not used
+     */
+    public void handleNotification(Notification notification, Object handback) {
+
+        if (notification instanceof MBeanServerNotification) {
+            // Registered and unregistered MBeans both drop any old metadata
+            ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+            generation.incrementAndGet();
+            attributes.remove(name);
+
+            // Update the names matched by each pattern
+            boolean registered = notification.getType().equals(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+            for (Map.Entry<ObjectName, CachedNames> entry : names.entrySet()) {
+                Set<ObjectName> matched = entry.getValue().names;
+                if (registered) {
+                    if (entry.getKey().apply(name)) {
+                        matched.add(name);
+                    }
+                } else {
+                    matched.remove(name);
+                }
+            }
+        } else if (notification instanceof JMXConnectionNotification) {
+            // Registration notifications may have been missed so start again
+            String type = notification.getType();
+            if (type.equals(JMXConnectionNotification.NOTIFS_LOST) ||
+                    type.equals(JMXConnectionNotification.FAILED) ||
+                    type.equals(JMXConnectionNotification.CLOSED)) {
+                clear();
+            }
+        }
+    }
+
+    /**
+     * Cached names matched by a pattern with the time they were first fetched
+     */
+    private static class CachedNames {
+
+        private final Set<ObjectName> names;
+        private final long timestamp;
+
+        CachedNames(Set<ObjectName> names, long timestamp) {
+            this.names = Collections.synchronizedSet(names);
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Cached attribute metadata with the time it was fetched
+     */
+    private static class CachedAttributes {
+
+        private final MBeanAttributeInfo[] attributes;
+        private final long timestamp;
+
+        CachedAttributes(MBeanAttributeInfo[] attributes, long timestamp) {
+            this.attributes = attributes;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+
+/**
+ * Receives metrics one at a time as they are read from JMX so results can be
+ * written out as they are found instead of being collected into a list first.
+ * Writers replace the tokens in each metric before writing it.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public interface MetricWriter {
+
+    /**
+     * Called once before the first metric is written
+     *
+     * @throws IOException
+     */
+    void begin() throws IOException;
+
+    /**
+     * Write a single metric
+     *
+     * @param metric    The metric and its value
+     * @throws IOException
+     */
+    void write(JMXMetric metric) throws IOException;
+
+    /**
+     * Called once after the last metric is written, finishes and flushes the output
+     *
+     * @throws IOException
+     */
+    void end() throws IOException;
+}
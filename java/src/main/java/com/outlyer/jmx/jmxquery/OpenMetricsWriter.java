@@ -0,0 +1,235 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.ObjectName;
+
+/**
+ * Writes metrics in the OpenMetrics text exposition format used by Prometheus.
+ * Metrics are named by their metricName and metricLabels if the query gave
+ * them, otherwise by their MBean domain, attribute and key with the MBean name
+ * properties as labels. Table cells are named by their column instead of their
+ * key, with the table index columns as labels. Only numeric and boolean values can be exposed, other
+ * values are left out. Metrics the query marked as counters are typed as
+ * counters, with _total added to their sample names.
+ *
+ * All the samples of a family must be written together, so samples are
+ * formatted as they arrive and held per family until end(), which writes each
+ * family with its TYPE and HELP lines followed by the # EOF marker.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class OpenMetricsWriter implements MetricWriter {
+
+    private final Writer out;
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+    private int count = 0;
+
+    /**
+     * @param out   Where to write the exposition, should be buffered
+     */
+    public OpenMetricsWriter(Writer out) {
+        this.out = out;
+    }
+
+    public void begin() throws IOException {
+        families.clear();
+        count = 0;
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+
+        String value = formatValue(metric.getValue());
+        if (value == null) {
+            return;
+        }
+        metric.replaceTokens();
+
+        StringBuilder sample = new StringBuilder();
+        String name;
+        if (metric.getmetricName() != null) {
+            name = sanitize(metric.getmetricName(), true);
+            sample.append(name);
+            appendLabels(sample, metric.getmetricLabels(), false);
+        } else {
+            ObjectName objectName = metric.getObjectName();
+            String domain = (objectName != null) ? objectName.getDomain()
+                    : metric.getmBeanName().substring(0, Math.max(0, metric.getmBeanName().indexOf(':')));
+            String attribute = domain + "_" + metric.getAttribute();
+            if (metric.getColumn() != null) {
+                // Table rows are told apart by their index labels
+                attribute += "_" + metric.getColumn();
+            } else if (metric.getAttributeKey() != null) {
+                attribute += "_" + metric.getAttributeKey();
+            }
+            name = sanitize(attribute, true);
+            sample.append(name);
+            appendLabels(sample, metric.getProperties(), true);
+        }
+        sample.append(' ').append(value).append('\n');
+
+        if (metric.isCounter()) {
+            // Counter samples are named {family}_total
+            if (name.endsWith("_total")) {
+                name = name.substring(0, name.length() - 6);
+            } else {
+                sample.insert(name.length(), "_total");
+            }
+        }
+
+        Family family = families.get(name);
+        if (family == null) {
+            // The query's [counter] or [gauge] type, which are also OpenMetrics types
+            String type = (metric.getMetricType() != null) ? metric.getMetricType() : "unknown";
+            family = new Family(name, type, help(metric));
+            families.put(name, family);
+        }
+        family.samples.append(sample);
+        count++;
+    }
+
+    public void end() throws IOException {
+        for (Family family : families.values()) {
+            out.write("# TYPE ");
+            out.write(family.name);
+            out.write(" ");
+            out.write(family.type);
+            out.write("\n# HELP ");
+            out.write(family.name);
+            out.write(" ");
+            out.write(family.help);
+            out.write("\n");
+            out.write(family.samples.toString());
+        }
+        out.write("# EOF\n");
+        out.flush();
+        families.clear();
+    }
+
+    /**
+     * @return  The number of samples written
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param value     The metric value
+     * @return          The value as an OpenMetrics number, null if it isn't numeric
+     */
+    static String formatValue(Object value) {
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? "1" : "0";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number)) {
+                return "NaN";
+            } else if (Double.isInfinite(number)) {
+                return (number > 0) ? "+Inf" : "-Inf";
+            }
+            return value.toString();
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Replaces characters not allowed in metric or label names with underscores
+     *
+     * @param name      The name to clean
+     * @param metric    true for metric names, which also allow colons
+     * @return          A valid name
+     */
+    static String sanitize(String name, boolean metric) {
+        StringBuilder clean = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (c == ':' && metric)) {
+                clean.append(c);
+            } else if (c >= '0' && c <= '9') {
+                if (i == 0) {
+                    clean.append('_');
+                }
+                clean.append(c);
+            } else {
+                clean.append('_');
+            }
+        }
+        if (clean.length() == 0) {
+            clean.append('_');
+        }
+        return clean.toString();
+    }
+
+    private static void appendLabels(StringBuilder sample, Map<String, String> labels, boolean unquote) {
+        if (labels.isEmpty()) {
+            return;
+        }
+        sample.append('{');
+        int labelCount = 0;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            if (labelCount++ > 0) {
+                sample.append(',');
+            }
+            String value = label.getValue();
+            if (unquote && value.length() > 1 && value.charAt(0) == '"') {
+                value = ObjectName.unquote(value);
+            }
+            sample.append(sanitize(label.getKey(), false)).append("=\"");
+            escape(sample, value);
+            sample.append('"');
+        }
+        sample.append('}');
+    }
+
+    private static String help(JMXMetric metric) {
+        StringBuilder help = new StringBuilder();
+        String source = metric.getmBeanName() + "/" + metric.getAttribute();
+        if (metric.getAttributeKey() != null) {
+            source += "/" + metric.getAttributeKey();
+        }
+        escape(help, source);
+        return help.toString();
+    }
+
+    /**
+     * Escapes backslashes, new lines and double quotes, as label values and HELP
+     * text both require
+     */
+    private static void escape(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                builder.append("\\\\");
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c == '"') {
+                builder.append("\\\"");
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+
+    /**
+     * The samples of one metric family waiting to be written
+     */
+    private static class Family {
+
+        private final String name;
+        private final String help;
+        private final String type;
+        private final StringBuilder samples = new StringBuilder();
+
+        Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.outlyer.jmx.jmxquery;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+import javax.management.ValueExp;
+
+/**
+ * Compiles the predicates given in square brackets at the end of a metric 
+ * query into a QueryExp, so the MBean server only returns the MBeans that
+ * match instead of every MBean matching the name being sent to the client.
+ * Predicates are separated by & and must all match:
+ *
+ *  {attribute}{op}{value}  - Compares an attribute, op is one of = != < <= > >= 
+ *                            or ~ to match a wildcard pattern. Numbers and true or 
+ *                            false are compared as such, other values as strings.
+ *  class={className}       - The MBean is an instance of the class
+ *  class~{pattern}         - The MBean class name matches the wildcard pattern
+ *  @{key}={pattern}        - The MBean name key property matches the wildcard pattern
+ *
+ * E.g. jvm_heap_pool_used<pool={name}>==java.lang:name=*,type=MemoryPool/Usage/used[Valid=true&Type=HEAP]
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class QueryFilter {
+
+    private static final String[] OPERATORS = { ">=", "<=", "!=", ">", "<", "=", "~" };
+
+    private QueryFilter() {
+    }
+
+    /**
+     * @param predicates    The predicates separated by &
+     * @return              The QueryExp matching MBeans that pass all the predicates
+     * @throws ParseError   If a predicate is invalid
+     */
+    public static QueryExp parse(String predicates) throws ParseError {
+        QueryExp filter = null;
+        for (String predicate : JMXMetric.split(predicates, '&')) {
+            predicate = predicate.trim();
+            if (predicate.length() == 0) {
+                continue;
+            }
+            QueryExp exp = parsePredicate(predicate);
+            filter = (filter == null) ? exp : Query.and(filter, exp);
+        }
+        if (filter == null) {
+            throw new ParseError("No predicates given in [" + predicates + "]");
+        }
+        return filter;
+    }
+
+    private static QueryExp parsePredicate(String predicate) throws ParseError {
+
+        // Find the first operator, checking two character operators first at each position
+        int position = -1;
+        String operator = null;
+        for (int i = 0; i < predicate.length() && operator == null; i++) {
+            for (String candidate : OPERATORS) {
+                if (predicate.startsWith(candidate, i)) {
+                    position = i;
+                    operator = candidate;
+                    break;
+                }
+            }
+        }
+        if (operator == null || position == 0) {
+            throw new ParseError("Predicate " + predicate + " is not in the format {attribute}{op}{value}");
+        }
+
+        String name = predicate.substring(0, position).trim();
+        String value = unquote(predicate.substring(position + operator.length()).trim());
+
+        if (name.startsWith("@")) {
+            if (!operator.equals("=")) {
+                throw new ParseError("Key property predicate " + predicate + " must use =");
+            }
+            try {
+                // ObjectName patterns are QueryExps matching on the name
+                return new ObjectName("*:" + name.substring(1) + "=" + value + ",*");
+            } catch (MalformedObjectNameException e) {
+                throw new ParseError("Key property predicate " + predicate + " is invalid", e);
+            }
+        }
+
+        if (name.equals("class")) {
+            if (operator.equals("=")) {
+                return Query.isInstanceOf(Query.value(value));
+            } else if (operator.equals("~")) {
+                return Query.match(Query.classattr(), Query.value(value));
+            }
+            throw new ParseError("Class predicate " + predicate + " must use = or ~");
+        }
+
+        if (operator.equals("~")) {
+            return Query.match(Query.attr(name), Query.value(value));
+        }
+
+        ValueExp compared = toValue(value);
+        if (operator.equals(">=")) {
+            return Query.geq(Query.attr(name), compared);
+        } else if (operator.equals("<=")) {
+            return Query.leq(Query.attr(name), compared);
+        } else if (operator.equals(">")) {
+            return Query.gt(Query.attr(name), compared);
+        } else if (operator.equals("<")) {
+            return Query.lt(Query.attr(name), compared);
+        } else if (operator.equals("!=")) {
+            return Query.not(Query.eq(Query.attr(name), compared));
+        }
+        return Query.eq(Query.attr(name), compared);
+    }
+
+    /**
+     * @param value     The value from the predicate
+     * @return          The value as a number, boolean or string
+     */
+    private static ValueExp toValue(String value) {
+        if (value.equals("true") || value.equals("false")) {
+            return Query.value(Boolean.parseBoolean(value));
+        }
+        try {
+            return Query.value(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            // Not a whole number
+        }
+        try {
+            return Query.value(Double.parseDouble(value));
+        } catch (NumberFormatException e) {
+            // Not a number
+        }
+        return Query.value(value);
+    }
+
+    private static String unquote(String text) {
+        if (text.length() > 1 && text.startsWith("\"") && text.endsWith("\"")) {
+            return text.substring(1, text.length() - 1);
+        }
+        return text;
+    }
+}
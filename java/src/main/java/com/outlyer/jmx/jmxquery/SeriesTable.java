@@ -0,0 +1,138 @@
+package com.outlyer.jmx.jmxquery;
+
+/**
+ * An open addressing table of series identified by a 64 bit hash, holding
+ * the time each series was last seen. Subclasses keep their values for each
+ * series in primitive arrays indexed by the series' slot, so a table with tens
+ * of thousands of series doesn't create an object per series or per poll.
+ * Series that haven't been seen within the maximum age are dropped when the
+ * arrays are next resized.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+abstract class SeriesTable {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final long maxAge;
+    private long[] keys;
+    private long[] times;
+    private int size = 0;
+
+    /**
+     * Subclasses must call clear() to allocate their arrays once constructed
+     *
+     * @param maxAge    Milliseconds a series can go unseen before it can be dropped
+     */
+    SeriesTable(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return  The number of series in the store
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Forget all the series
+     */
+    public synchronized void clear() {
+        keys = new long[MIN_CAPACITY];
+        times = new long[MIN_CAPACITY];
+        size = 0;
+        moved(MIN_CAPACITY, new int[0]);
+    }
+
+    /**
+     * Finds the slot holding a series, adding the series if it's new, and
+     * marks the series as seen. Must hold the lock.
+     *
+     * @param series    The series hash
+     * @param time      The time the series was seen in milliseconds
+     * @return          The series' slot, or -(slot + 1) if the series was added
+     */
+    int slot(long series, long time) {
+
+        long key = (series == 0) ? 1 : series;
+        int mask = keys.length - 1;
+        int index = index(key, mask);
+        while (keys[index] != 0) {
+            if (keys[index] == key) {
+                times[index] = time;
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            // Resize before adding so the slot returned stays valid
+            resize(time);
+            mask = keys.length - 1;
+            index = index(key, mask);
+            while (keys[index] != 0) {
+                index = (index + 1) & mask;
+            }
+        }
+        keys[index] = key;
+        times[index] = time;
+        size++;
+        return -(index + 1);
+    }
+
+    /**
+     * Called when the arrays are replaced, to replace the subclass' value
+     * arrays to match
+     *
+     * @param capacity  The number of slots in the new arrays
+     * @param moves     The new slot of the series in each old slot, -1 if it was dropped
+     */
+    abstract void moved(int capacity, int[] moves);
+
+    /**
+     * Rehashes the series dropping any that are too old, growing the arrays
+     * if they are still over half full
+     */
+    private void resize(long now) {
+        long[] oldKeys = keys;
+        long[] oldTimes = times;
+
+        int live = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && now - oldTimes[i] <= maxAge) {
+                live++;
+            }
+        }
+        int capacity = MIN_CAPACITY;
+        while (live * 4 > capacity) {
+            capacity <<= 1;
+        }
+
+        keys = new long[capacity];
+        times = new long[capacity];
+        size = 0;
+        int[] moves = new int[oldKeys.length];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            moves[i] = -1;
+            if (oldKeys[i] != 0 && now - oldTimes[i] <= maxAge) {
+                int index = index(oldKeys[i], mask);
+                while (keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                times[index] = oldTimes[i];
+                moves[i] = index;
+                size++;
+            }
+        }
+        moved(capacity, moves);
+    }
+
+    private static int index(long key, int mask) {
+        // Mix the high bits in as the hash may be sequential in the low ones
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+}
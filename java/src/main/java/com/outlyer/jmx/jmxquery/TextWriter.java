@@ -0,0 +1,63 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes metrics as human readable lines as each one is found
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class TextWriter implements MetricWriter {
+
+    private final Writer out;
+    private final String prefix;
+    private final boolean summary;
+    private int count = 0;
+
+    /**
+     * @param out       Where to write the metrics, should be buffered
+     * @param prefix    Text to start each line with, null for none
+     * @param summary   Write the number of metrics found after the last metric
+     */
+    public TextWriter(Writer out, String prefix, boolean summary) {
+        this.out = out;
+        this.prefix = prefix;
+        this.summary = summary;
+    }
+
+    public void begin() throws IOException {
+        count = 0;
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+        metric.replaceTokens();
+        if (!summary && count > 0) {
+            out.write('\n');
+        }
+        if (prefix != null) {
+            out.write(prefix);
+            out.write(' ');
+        }
+        out.write(metric.toString());
+        if (summary) {
+            out.write('\n');
+        }
+        count++;
+    }
+
+    public void end() throws IOException {
+        if (summary) {
+            out.write("=====================\n");
+            out.write("Total Metrics Found: " + count + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * @return  The number of metrics written
+     */
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,321 @@
+package com.outlyer.jmx.jmxquery;
+
+/**
+ * Keeps the recent history of each series in memory so window queries, i.e.
+ * the maximum heap used over the last 10 minutes, can be answered without an
+ * external time series database. 
+ *
+ * All memory is allocated up front: each series gets a ring buffer holding a
+ * fixed number of samples in shared primitive arrays, and series are found 
+ * through an open addressing table of 64 bit series hashes. Appending a sample
+ * doesn't allocate anything. When the store holds its maximum number of 
+ * series, the series that has gone longest without a sample is evicted to
+ * make room for a new one. Series are kept in a linked list of slots in 
+ * order of their last sample, so finding it doesn't scan every series.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class TimeSeriesStore {
+
+    /**
+     * Default maximum number of series kept
+     */
+    public static final int DEFAULT_MAX_SERIES = 10000;
+
+    private final int maxSeries;
+    private final int capacity;
+
+    // Open addressing table of series hash to series slot, 0 keys are empty
+    private final long[] keys;
+    private final int[] slots;
+
+    // Per series slot
+    private final long[] slotKeys;
+    private final int[] heads;
+    private final int[] counts;
+
+    // Slots in order of their last sample, least recent first, -1 for none
+    private final int[] previous;
+    private final int[] next;
+    private int leastRecent = -1;
+    private int mostRecent = -1;
+
+    // Ring buffers, capacity samples per slot
+    private final long[] times;
+    private final double[] values;
+
+    private int size = 0;
+
+    /**
+     * @param maxSeries     Maximum number of series to keep
+     * @param capacity      Number of samples kept for each series
+     */
+    public TimeSeriesStore(int maxSeries, int capacity) {
+        if (maxSeries < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Series and samples must be 1 or more, got " 
+                    + maxSeries + " and " + capacity);
+        }
+        if ((long) maxSeries * capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't keep " + capacity + " samples for " 
+                    + maxSeries + " series");
+        }
+        this.maxSeries = maxSeries;
+        this.capacity = capacity;
+
+        int tableSize = 2;
+        while (tableSize < maxSeries * 2) {
+            tableSize <<= 1;
+        }
+        keys = new long[tableSize];
+        slots = new int[tableSize];
+
+        slotKeys = new long[maxSeries];
+        heads = new int[maxSeries];
+        counts = new int[maxSeries];
+        previous = new int[maxSeries];
+        next = new int[maxSeries];
+
+        times = new long[maxSeries * capacity];
+        values = new double[maxSeries * capacity];
+    }
+
+    /**
+     * Adds a sample to a series, creating the series if it's new
+     *
+     * @param series    The series hash, see CounterStore.series()
+     * @param time      The time of the sample in milliseconds
+     * @param value     The sample value
+     */
+    public synchronized void append(long series, long time, double value) {
+
+        long key = (series == 0) ? 1 : series;
+        int index = find(key);
+        int slot;
+        if (keys[index] == key) {
+            slot = slots[index];
+            unlink(slot);
+        } else {
+            slot = (size < maxSeries) ? size++ : evictOldest();
+            // Eviction can move keys so find the free index again
+            index = find(key);
+            keys[index] = key;
+            slots[index] = slot;
+            slotKeys[slot] = key;
+            heads[slot] = 0;
+            counts[slot] = 0;
+        }
+
+        int position = slot * capacity + heads[slot];
+        times[position] = time;
+        values[position] = value;
+        heads[slot] = (heads[slot] + 1 == capacity) ? 0 : heads[slot] + 1;
+        if (counts[slot] < capacity) {
+            counts[slot]++;
+        }
+        link(slot);
+    }
+
+    /**
+     * Works out the minimum, maximum, average and last values of a series over
+     * a window of time
+     *
+     * @param series    The series hash
+     * @param from      Start of the window in milliseconds, inclusive
+     * @param to        End of the window in milliseconds, inclusive
+     * @param stats     Set to the stats for the window
+     * @return          true if the series had any samples in the window
+     */
+    public synchronized boolean window(long series, long from, long to, WindowStats stats) {
+
+        stats.reset();
+
+        long key = (series == 0) ? 1 : series;
+        int index = find(key);
+        if (keys[index] != key) {
+            return false;
+        }
+        int slot = slots[index];
+
+        // Walk back from the newest sample until before the window
+        int position = heads[slot];
+        for (int i = 0; i < counts[slot]; i++) {
+            position = (position == 0) ? capacity - 1 : position - 1;
+            long time = times[slot * capacity + position];
+            if (time < from) {
+                break;
+            }
+            if (time <= to) {
+                stats.add(time, values[slot * capacity + position]);
+            }
+        }
+        return stats.count > 0;
+    }
+
+    /**
+     * @return  The number of series in the store
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return  The number of samples kept for each series
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param key   The series key, not 0
+     * @return      The table index holding the key, or the empty index it would go in
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        int index = (int) (mixed ^ (mixed >>> 32)) & mask;
+        while (keys[index] != 0 && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Removes the series that has gone longest without a sample
+     *
+     * @return  The freed slot
+     */
+    private int evictOldest() {
+        int oldest = leastRecent;
+        unlink(oldest);
+        remove(find(slotKeys[oldest]));
+        return oldest;
+    }
+
+    /**
+     * Adds a slot to the most recent end of the list
+     */
+    private void link(int slot) {
+        previous[slot] = mostRecent;
+        next[slot] = -1;
+        if (mostRecent >= 0) {
+            next[mostRecent] = slot;
+        } else {
+            leastRecent = slot;
+        }
+        mostRecent = slot;
+    }
+
+    /**
+     * Takes a slot out of the list
+     */
+    private void unlink(int slot) {
+        if (previous[slot] >= 0) {
+            next[previous[slot]] = next[slot];
+        } else {
+            leastRecent = next[slot];
+        }
+        if (next[slot] >= 0) {
+            previous[next[slot]] = previous[slot];
+        } else {
+            mostRecent = previous[slot];
+        }
+    }
+
+    /**
+     * Removes a key from the table, shifting back later keys in its probe
+     * sequence so they can still be found
+     */
+    private void remove(int index) {
+        int mask = keys.length - 1;
+        keys[index] = 0;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            if (keys[next] == 0) {
+                return;
+            }
+            long mixed = keys[next] * 0x9E3779B97F4A7C15L;
+            int home = (int) (mixed ^ (mixed >>> 32)) & mask;
+            // Leave keys whose home is between the gap and where they are
+            boolean between = (index <= next) ? (index < home && home <= next) : (index < home || home <= next);
+            if (!between) {
+                keys[index] = keys[next];
+                slots[index] = slots[next];
+                keys[next] = 0;
+                index = next;
+            }
+        }
+    }
+
+    /**
+     * Stats for a series over a window, reused between queries
+     */
+    public static class WindowStats {
+
+        private int count;
+        private double min;
+        private double max;
+        private double sum;
+        private double last;
+        private long lastTime;
+
+        void reset() {
+            count = 0;
+            min = Double.NaN;
+            max = Double.NaN;
+            sum = 0;
+            last = Double.NaN;
+            lastTime = 0;
+        }
+
+        /**
+         * Samples are added newest first
+         */
+        void add(long time, double value) {
+            if (count == 0) {
+                min = value;
+                max = value;
+                last = value;
+                lastTime = time;
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            sum += value;
+            count++;
+        }
+
+        /**
+         * @return  The number of samples in the window
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getAvg() {
+            return (count > 0) ? sum / count : Double.NaN;
+        }
+
+        /**
+         * @return  The newest value in the window
+         */
+        public double getLast() {
+            return last;
+        }
+
+        /**
+         * @return  The time of the newest value in the window
+         */
+        public long getLastTime() {
+            return lastTime;
+        }
+    }
+}
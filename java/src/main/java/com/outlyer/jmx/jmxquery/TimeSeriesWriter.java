@@ -0,0 +1,47 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+
+/**
+ * Records the numeric values of metrics in a TimeSeriesStore before passing
+ * them on to another writer
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class TimeSeriesWriter implements MetricWriter {
+
+    private final MetricWriter writer;
+    private final TimeSeriesStore store;
+    private final String scope;
+
+    /**
+     * @param writer    The writer to pass the metrics on to
+     * @param store     The store to record values in
+     * @param scope     Identifies the JVM polled, i.e. its url
+     */
+    public TimeSeriesWriter(MetricWriter writer, TimeSeriesStore store, String scope) {
+        this.writer = writer;
+        this.store = store;
+        this.scope = scope;
+    }
+
+    public void begin() throws IOException {
+        writer.begin();
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+        Object value = metric.getValue();
+        if (value instanceof Number) {
+            store.append(CounterStore.series(scope, metric), System.currentTimeMillis(), 
+                    ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            store.append(CounterStore.series(scope, metric), System.currentTimeMillis(), 
+                    ((Boolean) value) ? 1 : 0);
+        }
+        writer.write(metric);
+    }
+
+    public void end() throws IOException {
+        writer.end();
+    }
+}
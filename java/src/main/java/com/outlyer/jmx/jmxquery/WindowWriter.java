@@ -0,0 +1,50 @@
+package com.outlyer.jmx.jmxquery;
+
+import java.io.IOException;
+
+/**
+ * Adds the stats of each metric's recorded values over a window of time, i.e.
+ * the minimum, maximum and average heap used over the last 10 minutes, before
+ * passing metrics on to another writer. The values are the ones a
+ * TimeSeriesWriter recorded for the same scope.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class WindowWriter implements MetricWriter {
+
+    private final MetricWriter writer;
+    private final TimeSeriesStore store;
+    private final String scope;
+    private final long window;
+
+    /**
+     * @param writer    The writer to pass the metrics on to
+     * @param store     The store the values were recorded in
+     * @param scope     Identifies the JVM the values were recorded for, i.e. its url
+     * @param window    Milliseconds of history up to now to summarise
+     */
+    public WindowWriter(MetricWriter writer, TimeSeriesStore store, String scope, long window) {
+        this.writer = writer;
+        this.store = store;
+        this.scope = scope;
+        this.window = window;
+    }
+
+    public void begin() throws IOException {
+        writer.begin();
+    }
+
+    public void write(JMXMetric metric) throws IOException {
+        if (metric.getError() == null) {
+            long now = System.currentTimeMillis();
+            TimeSeriesStore.WindowStats stats = new TimeSeriesStore.WindowStats();
+            store.window(CounterStore.series(scope, metric), now - window, now, stats);
+            metric.setWindow(stats);
+        }
+        writer.write(metric);
+    }
+
+    public void end() throws IOException {
+        writer.end();
+    }
+}
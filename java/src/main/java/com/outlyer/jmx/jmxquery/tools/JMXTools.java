@@ -1,41 +1,69 @@
 package com.outlyer.jmx.jmxquery.tools;
 
-import com.sun.tools.attach.AttachNotSupportedException;
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utility tools for listing and connecting to local JVMs. Note this will use
  * the tools.jar in JDK, so will require JDK installed on the host machine.
  * 
+ * Listing the JVMs on the machine is cheap but attaching to each one isn't, 
+ * so JVMs are matched on their display name before attaching, attached to in
+ * parallel with a time limit for each, and their connection URLs are kept 
+ * until the process exits.
+ * 
  * @author David Gildeh (www.outlyer.com)
  */
 public class JMXTools {
     
+    /**
+     * Default time allowed to attach to a JVM and read its connection URL
+     */
+    public static final long DEFAULT_ATTACH_TIMEOUT = 5 * 1000;
+    
+    /**
+     * Maximum number of JVMs attached to at the same time
+     */
+    private static final int PARALLEL_ATTACH = 8;
+    
+    // Connection URLs found by process id, only for JVMs still running
+    private static final Map<String, LocalJMXConnection> connections = new HashMap<String, LocalJMXConnection>();
+    
+    private static long attachTimeout = DEFAULT_ATTACH_TIMEOUT;
+    
+    /**
+     * @param timeout   Milliseconds allowed to attach to each JVM
+     */
+    public static synchronized void setAttachTimeout(long timeout) {
+        attachTimeout = timeout;
+    }
+    
     /**
      * Lists all the JVMs on a machine with their connection URLs
      * 
-     * @return  Array of JVMs with their JMX Connection URLs, null if JMX not enabled
+     * @return  Array of JVMs with their JMX Connection URLs, the URL is null 
+     *          if the management agent couldn't be started
      */
     public static ArrayList<LocalJMXConnection> getLocalJVMs() {
-        
-        ArrayList<LocalJMXConnection> connections = new ArrayList<LocalJMXConnection>();
-
-        List<VirtualMachineDescriptor> vms = VirtualMachine.list();
-        for (VirtualMachineDescriptor desc : vms) {
-            try {
-                connections.add(new LocalJMXConnection(desc));
-            } catch (AttachNotSupportedException ae) {
-                // Skip
-            } catch (IOException ie) {
-                // Skip
-            }
-        }
-        
-        return connections;
+        List<VirtualMachineDescriptor> running = VirtualMachine.list();
+        return getConnections(running, running);
     }
     
     /**
@@ -45,10 +73,17 @@ public class JMXTools {
      */
     public static String getLocalJMXConnection(String process) {
         
-        ArrayList<LocalJMXConnection> connections = JMXTools.getLocalJVMs();
+        // Only attach to the JVMs with the right name
+        List<VirtualMachineDescriptor> running = VirtualMachine.list();
+        List<VirtualMachineDescriptor> matches = new ArrayList<VirtualMachineDescriptor>();
+        for (VirtualMachineDescriptor desc : running) {
+            if (process.equals(LocalJMXConnection.getDisplayName(desc))) {
+                matches.add(desc);
+            }
+        }
         
-        for (LocalJMXConnection connection : connections) {
-            if (process.equals(connection.getDisplayName())) {
+        for (LocalJMXConnection connection : getConnections(running, matches)) {
+            if (connection.getJmxUrl() != null) {
                 return connection.getJmxUrl();
             }
         }
@@ -56,4 +91,122 @@ public class JMXTools {
         // Not found
         return null;
     }
+    
+    /**
+     * Forget the connection URLs found so far
+     */
+    public static synchronized void clearCache() {
+        connections.clear();
+    }
+    
+    /**
+     * Get the connections for JVMs, from the cache if they have been found 
+     * before, otherwise by attaching to them in parallel
+     * 
+     * @param running     All the JVMs running on the machine
+     * @param vms         The JVMs to get the connections for
+     * @return            The connections for the JVMs that could be attached to in time
+     */
+    private static ArrayList<LocalJMXConnection> getConnections(List<VirtualMachineDescriptor> running, 
+            List<VirtualMachineDescriptor> vms) {
+        
+        ArrayList<LocalJMXConnection> found = new ArrayList<LocalJMXConnection>();
+        List<VirtualMachineDescriptor> attach = new ArrayList<VirtualMachineDescriptor>();
+        long timeout;
+        synchronized (JMXTools.class) {
+            dropExited(running);
+            for (VirtualMachineDescriptor desc : vms) {
+                LocalJMXConnection cached = connections.get(desc.id());
+                if (cached != null) {
+                    found.add(cached);
+                } else {
+                    attach.add(desc);
+                }
+            }
+            timeout = attachTimeout;
+        }
+        if (attach.isEmpty()) {
+            return found;
+        }
+        
+        // Threads stuck attaching to a JVM are abandoned, so the pool can't be fixed
+        ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                // A JVM that doesn't answer mustn't stop this one exiting
+                Thread thread = new Thread(r, "jmxquery-attach");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<LocalJMXConnection> completed = new ExecutorCompletionService<LocalJMXConnection>(pool);
+        // Deadlines of the attaches running, in the order they started
+        Map<Future<LocalJMXConnection>, Long> attaching = new LinkedHashMap<Future<LocalJMXConnection>, Long>();
+        Iterator<VirtualMachineDescriptor> queued = attach.iterator();
+        try {
+            while (queued.hasNext() || !attaching.isEmpty()) {
+                // Each JVM gets the timeout from when its own attach starts
+                while (attaching.size() < PARALLEL_ATTACH && queued.hasNext()) {
+                    final VirtualMachineDescriptor desc = queued.next();
+                    Future<LocalJMXConnection> result = completed.submit(new Callable<LocalJMXConnection>() {
+                        public LocalJMXConnection call() throws Exception {
+                            return new LocalJMXConnection(desc);
+                        }
+                    });
+                    attaching.put(result, System.currentTimeMillis() + timeout);
+                }
+                
+                Map.Entry<Future<LocalJMXConnection>, Long> oldest = attaching.entrySet().iterator().next();
+                Future<LocalJMXConnection> result = completed.poll(
+                        Math.max(0, oldest.getValue() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (result == null) {
+                    // Out of time, give its place to the next JVM
+                    oldest.getKey().cancel(true);
+                    attaching.remove(oldest.getKey());
+                    continue;
+                }
+                if (attaching.remove(result) == null) {
+                    // Already timed out
+                    continue;
+                }
+                try {
+                    LocalJMXConnection connection = result.get();
+                    found.add(connection);
+                    if (connection.getJmxUrl() != null) {
+                        synchronized (JMXTools.class) {
+                            connections.put(connection.getId(), connection);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    // Skip, can't attach
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        
+        return found;
+    }
+    
+    /**
+     * Drop cached connections for processes that have exited. Must hold the class lock.
+     * 
+     * @param running   All the JVMs running on the machine
+     */
+    private static void dropExited(List<VirtualMachineDescriptor> running) {
+        if (connections.isEmpty()) {
+            return;
+        }
+        Set<String> ids = new HashSet<String>();
+        for (VirtualMachineDescriptor desc : running) {
+            ids.add(desc.id());
+        }
+        Iterator<String> cached = connections.keySet().iterator();
+        while (cached.hasNext()) {
+            if (!ids.contains(cached.next())) {
+                cached.remove();
+            }
+        }
+    }
 }
@@ -1,9 +1,14 @@
 package com.outlyer.jmx.jmxquery.tools;
 
+import com.sun.tools.attach.AgentInitializationException;
+import com.sun.tools.attach.AgentLoadException;
 import com.sun.tools.attach.AttachNotSupportedException;
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Properties;
 
 /**
@@ -12,17 +17,87 @@ import java.util.Properties;
  */
 public class LocalJMXConnection {
     
+    private static final String CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+    
     private String displayName = "";
     private String id = "";
     private String jmxUrl = null;
     
+    /**
+     * Attaches to a JVM to read its local JMX connection URL, starting its
+     * management agent if it isn't running
+     * 
+     * @param desc  The JVM to attach to
+     * @throws AttachNotSupportedException
+     * @throws IOException 
+     */
     public LocalJMXConnection(VirtualMachineDescriptor desc) throws AttachNotSupportedException, IOException {
-        VirtualMachine vm = VirtualMachine.attach(desc);        
-        Properties props = vm.getAgentProperties();
-        
-        this.displayName = desc.displayName().split(" ")[0];
+        this.displayName = getDisplayName(desc);
         this.id = desc.id();
-        this.jmxUrl = props.getProperty("com.sun.management.jmxremote.localConnectorAddress");
+        
+        VirtualMachine vm = VirtualMachine.attach(desc);
+        try {
+            this.jmxUrl = vm.getAgentProperties().getProperty(CONNECTOR_ADDRESS);
+            if (this.jmxUrl == null) {
+                this.jmxUrl = startManagementAgent(vm);
+            }
+        } finally {
+            vm.detach();
+        }
+    }
+    
+    LocalJMXConnection(String displayName, String id, String jmxUrl) {
+        this.displayName = displayName;
+        this.id = id;
+        this.jmxUrl = jmxUrl;
+    }
+    
+    /**
+     * @param desc  A JVM on this machine
+     * @return      The JVM's main class or jar, without its arguments
+     */
+    static String getDisplayName(VirtualMachineDescriptor desc) {
+        return desc.displayName().split(" ")[0];
+    }
+    
+    /**
+     * Starts the local management agent in a JVM that isn't running one. Uses
+     * VirtualMachine.startLocalManagementAgent() on Java 8 and above, found by
+     * reflection so this still builds against older tools.jar, otherwise 
+     * loads the JVM's own management-agent.jar.
+     * 
+     * @param vm    The attached JVM
+     * @return      The JMX connection URL, null if the agent couldn't be started
+     * @throws IOException 
+     */
+    private static String startManagementAgent(VirtualMachine vm) throws IOException {
+        try {
+            Method start = VirtualMachine.class.getMethod("startLocalManagementAgent");
+            return (String) start.invoke(vm);
+        } catch (NoSuchMethodException e) {
+            // Before Java 8
+        } catch (IllegalAccessException e) {
+            // Fall back to the agent jar
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            return null;
+        }
+        
+        Properties properties = vm.getSystemProperties();
+        File agent = new File(properties.getProperty("java.home"), "lib" + File.separator + "management-agent.jar");
+        if (!agent.exists()) {
+            return null;
+        }
+        try {
+            vm.loadAgent(agent.getPath(), "com.sun.management.jmxremote");
+        } catch (AgentLoadException e) {
+            return null;
+        } catch (AgentInitializationException e) {
+            return null;
+        }
+        return vm.getAgentProperties().getProperty(CONNECTOR_ADDRESS);
     }
 
     public String getDisplayName() {
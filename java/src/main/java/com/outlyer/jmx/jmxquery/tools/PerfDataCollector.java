@@ -0,0 +1,227 @@
+package com.outlyer.jmx.jmxquery.tools;
+
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.MetricWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Answers the standard JVM queries added by -incjvm from a JVM's hsperfdata
+ * counters instead of JMX, so local JVMs can be sampled often without any
+ * load on them. The counters are mapped onto the java.lang MBeans:
+ *
+ *  ClassLoading        LoadedClassCount, UnloadedClassCount, TotalLoadedClassCount
+ *  GarbageCollector    CollectionCount, CollectionTime, named the same as the
+ *                      GarbageCollectorMXBeans, i.e. "G1 Young Generation" for
+ *                      the "G1 young collection pauses" counters
+ *  Memory              HeapMemoryUsage committed, max and used
+ *  MemoryPool          Usage committed, max and used for Metaspace and 
+ *                      Compressed Class Space
+ *  Runtime             Uptime
+ *  Threading           ThreadCount, PeakThreadCount, DaemonThreadCount, TotalStartedThreadCount
+ *
+ * Other queries, such as OperatingSystem, have no counters and return nothing.
+ * As with jstat, the JVM only updates some of the memory counters after a 
+ * collection, so Metaspace usage reads 0 until the first one.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class PerfDataCollector {
+
+    // HotSpot collector counter names, current and JDK 8, to GarbageCollectorMXBean names
+    private static final Map<String, String> COLLECTOR_NAMES = new HashMap<String, String>();
+    static {
+        COLLECTOR_NAMES.put("G1 young collection pauses", "G1 Young Generation");
+        COLLECTOR_NAMES.put("G1 full collection pauses", "G1 Old Generation");
+        COLLECTOR_NAMES.put("G1 concurrent cycle pauses", "G1 Concurrent GC");
+        COLLECTOR_NAMES.put("G1 incremental collections", "G1 Young Generation");
+        COLLECTOR_NAMES.put("G1 stop-the-world full collections", "G1 Old Generation");
+        COLLECTOR_NAMES.put("Parallel young collection pauses", "PS Scavenge");
+        COLLECTOR_NAMES.put("Parallel full collection pauses", "PS MarkSweep");
+        COLLECTOR_NAMES.put("PSScavenge", "PS Scavenge");
+        COLLECTOR_NAMES.put("PSParallelCompact", "PS MarkSweep");
+        COLLECTOR_NAMES.put("Serial young collection pauses", "Copy");
+        COLLECTOR_NAMES.put("Serial full collection pauses", "MarkSweepCompact");
+        COLLECTOR_NAMES.put("MSC", "MarkSweepCompact");
+        COLLECTOR_NAMES.put("CMS", "ConcurrentMarkSweep");
+        COLLECTOR_NAMES.put("Z concurrent cycle pauses", "ZGC Pauses");
+    }
+
+    private final PerfDataFile perfData;
+
+    /**
+     * @param perfData  The JVM's counters
+     */
+    public PerfDataCollector(PerfDataFile perfData) {
+        this.perfData = perfData;
+    }
+
+    /**
+     * Runs the queries against the current counter values
+     *
+     * @param queries       The metric queries
+     * @param writer        Writer to send the metrics found to
+     * @throws IOException
+     * @throws MalformedObjectNameException     If a query's MBean name is invalid
+     */
+    public void getMetrics(ArrayList<JMXMetric> queries, MetricWriter writer) 
+            throws IOException, MalformedObjectNameException {
+
+        perfData.refresh();
+        ArrayList<JMXMetric> values = read();
+
+        writer.begin();
+        for (JMXMetric query : queries) {
+            ObjectName pattern = new ObjectName(query.getmBeanName());
+            for (JMXMetric value : values) {
+                if (pattern.apply(value.getObjectName()) 
+                        && matches(query.getAttribute(), value.getAttribute())
+                        && matches(query.getAttributeKey(), value.getAttributeKey())) {
+                    JMXMetric result = query.newResult(value.getObjectName(), value.getmBeanName(),
+                            value.getAttribute(), value.getAttributeKey());
+                    result.setAttributeType(value.getValue());
+                    result.setValue(value.getValue());
+                    writer.write(result);
+                }
+            }
+        }
+        writer.end();
+    }
+
+    private static boolean matches(String wanted, String found) {
+        return wanted == null || wanted.equals("*") || wanted.equals(found);
+    }
+
+    /**
+     * @return  The values of all the counters mapped onto MBean attributes
+     */
+    private ArrayList<JMXMetric> read() throws MalformedObjectNameException {
+
+        ArrayList<JMXMetric> values = new ArrayList<JMXMetric>();
+
+        // Class loading, classes loaded from the shared archive have their own
+        // counters which the management API adds to the others
+        Long loaded = sum("java.cls.loadedClasses", "java.cls.sharedLoadedClasses");
+        Long unloaded = sum("java.cls.unloadedClasses", "java.cls.sharedUnloadedClasses");
+        add(values, "java.lang:type=ClassLoading", "TotalLoadedClassCount", null, loaded);
+        add(values, "java.lang:type=ClassLoading", "UnloadedClassCount", null, unloaded);
+        if (loaded != null && unloaded != null) {
+            add(values, "java.lang:type=ClassLoading", "LoadedClassCount", null, loaded - unloaded);
+        }
+
+        // Garbage collectors, times are in high resolution timer ticks
+        Long frequency = perfData.getLong("sun.os.hrt.frequency");
+        // Collectors aren't always numbered from 0, i.e. ZGC's is collector 2
+        for (String counter : new TreeSet<String>(perfData.getNames())) {
+            if (!counter.startsWith("sun.gc.collector.") || !counter.endsWith(".name")) {
+                continue;
+            }
+            String prefix = counter.substring(0, counter.length() - "name".length());
+            String name = perfData.getString(counter);
+            if (name == null) {
+                continue;
+            }
+            if (COLLECTOR_NAMES.containsKey(name)) {
+                name = COLLECTOR_NAMES.get(name);
+            }
+            String mBeanName = "java.lang:type=GarbageCollector,name=" + quote(name);
+            add(values, mBeanName, "CollectionCount", null, perfData.getLong(prefix + "invocations"));
+            Long ticks = perfData.getLong(prefix + "time");
+            if (ticks != null && frequency != null && frequency > 0) {
+                add(values, mBeanName, "CollectionTime", null, ticks * 1000 / frequency);
+            }
+        }
+
+        // Heap is the sum of the generations
+        long committed = 0;
+        long max = 0;
+        long used = 0;
+        for (int generation = 0; ; generation++) {
+            String prefix = "sun.gc.generation." + generation + ".";
+            Long capacity = perfData.getLong(prefix + "capacity");
+            if (capacity == null) {
+                break;
+            }
+            committed += capacity;
+            Long maxCapacity = perfData.getLong(prefix + "maxCapacity");
+            max += (maxCapacity != null) ? maxCapacity : 0;
+            for (int space = 0; ; space++) {
+                Long spaceUsed = perfData.getLong(prefix + "space." + space + ".used");
+                if (spaceUsed == null) {
+                    break;
+                }
+                used += spaceUsed;
+            }
+        }
+        if (committed > 0) {
+            add(values, "java.lang:type=Memory", "HeapMemoryUsage", "committed", committed);
+            add(values, "java.lang:type=Memory", "HeapMemoryUsage", "max", max);
+            add(values, "java.lang:type=Memory", "HeapMemoryUsage", "used", used);
+        }
+
+        addPool(values, "Metaspace", "sun.gc.metaspace.");
+        addPool(values, "Compressed Class Space", "sun.gc.compressedclassspace.");
+
+        // Uptime from the time the JVM started
+        Long started = perfData.getLong("sun.rt.createVmBeginTime");
+        if (started != null) {
+            add(values, "java.lang:type=Runtime", "Uptime", null, System.currentTimeMillis() - started);
+        }
+
+        add(values, "java.lang:type=Threading", "ThreadCount", null, perfData.getLong("java.threads.live"));
+        add(values, "java.lang:type=Threading", "PeakThreadCount", null, perfData.getLong("java.threads.livePeak"));
+        add(values, "java.lang:type=Threading", "DaemonThreadCount", null, perfData.getLong("java.threads.daemon"));
+        add(values, "java.lang:type=Threading", "TotalStartedThreadCount", null, 
+                perfData.getLong("java.threads.started"));
+
+        return values;
+    }
+
+    private void addPool(ArrayList<JMXMetric> values, String pool, String prefix) 
+            throws MalformedObjectNameException {
+        String mBeanName = "java.lang:type=MemoryPool,name=" + pool;
+        add(values, mBeanName, "Usage", "committed", perfData.getLong(prefix + "capacity"));
+        add(values, mBeanName, "Usage", "max", perfData.getLong(prefix + "maxCapacity"));
+        add(values, mBeanName, "Usage", "used", perfData.getLong(prefix + "used"));
+    }
+
+    /**
+     * @return  The total of the counters that exist, null if none of them do
+     */
+    private Long sum(String... names) {
+        Long total = null;
+        for (String name : names) {
+            Long value = perfData.getLong(name);
+            if (value != null) {
+                total = (total == null) ? value : total + value;
+            }
+        }
+        return total;
+    }
+
+    private static void add(ArrayList<JMXMetric> values, String mBeanName, String attribute, 
+            String attributeKey, Long value) throws MalformedObjectNameException {
+        if (value == null) {
+            return;
+        }
+        JMXMetric metric = new JMXMetric(mBeanName, attribute, attributeKey);
+        // Sets the ObjectName the query patterns are matched against
+        metric = metric.newResult(new ObjectName(mBeanName), mBeanName, attribute, attributeKey);
+        metric.setValue(value);
+        values.add(metric);
+    }
+
+    private static String quote(String value) {
+        for (char c : new char[] { ',', '=', ':', '"', '*', '?', '\n' }) {
+            if (value.indexOf(c) >= 0) {
+                return ObjectName.quote(value);
+            }
+        }
+        return value;
+    }
+}
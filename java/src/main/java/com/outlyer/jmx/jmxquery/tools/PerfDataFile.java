@@ -0,0 +1,205 @@
+package com.outlyer.jmx.jmxquery.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the performance counters a HotSpot JVM publishes in its hsperfdata
+ * file, /tmp/hsperfdata_{user}/{pid}, which is what jstat reads. The file is
+ * memory mapped read only and counters are read straight from the mapping, 
+ * so sampling doesn't attach to the JVM, use RMI or run anything in it.
+ *
+ * The file starts with a prologue giving the byte order, format version and
+ * where the entries start. Each entry has a header giving its length, the 
+ * offset of its name, its type (J for a long, B for a byte string), units
+ * and the offset of its data. Only version 2 of the format, used since 
+ * Java 6, is supported.
+ *
+ * @author David Gildeh (www.outlyer.com)
+ */
+public class PerfDataFile {
+
+    private static final int MAGIC = 0xcafec0c0;
+    private static final int USED_OFFSET = 8;
+    private static final int ENTRY_OFFSET_OFFSET = 24;
+    private static final int NUM_ENTRIES_OFFSET = 28;
+
+    private static final byte TYPE_LONG = 'J';
+    private static final byte TYPE_BYTE = 'B';
+
+    /**
+     * Units of counters measured in high resolution timer ticks
+     */
+    public static final int UNITS_TICKS = 3;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private Map<String, Entry> entries = Collections.emptyMap();
+    private int indexedUsed = -1;
+
+    /**
+     * Maps a JVM's hsperfdata file
+     *
+     * @param file          The hsperfdata file
+     * @throws IOException  If the file can't be read or isn't a version 2 hsperfdata file
+     */
+    public PerfDataFile(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.capacity() < 32) {
+            throw new IOException(file + " is too short to be an hsperfdata file");
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not an hsperfdata file");
+        }
+        buffer.order(buffer.get(4) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        if (buffer.get(5) != 2) {
+            throw new IOException(file + " is hsperfdata version " + buffer.get(5) + ", only version 2 is supported");
+        }
+        refresh();
+    }
+
+    /**
+     * Finds the hsperfdata file for a local JVM. HotSpot always puts them in
+     * /tmp except on Windows, whatever java.io.tmpdir is set to.
+     *
+     * @param pid   The JVM's process id
+     * @return      The file, null if the JVM doesn't have one
+     */
+    public static File find(String pid) {
+        String tmp = System.getProperty("os.name").startsWith("Windows") 
+                ? System.getProperty("java.io.tmpdir") : "/tmp";
+        File[] dirs = new File(tmp).listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.getName().startsWith("hsperfdata_")) {
+                    File file = new File(dir, pid);
+                    if (file.isFile()) {
+                        return file;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Index any counters the JVM has added since the file was last indexed.
+     * Only reads the prologue if nothing has been added.
+     */
+    public synchronized void refresh() {
+        int used = buffer.getInt(USED_OFFSET);
+        if (used == indexedUsed || buffer.get(7) == 0) {
+            // Nothing new, or the JVM hasn't finished setting up the file
+            return;
+        }
+
+        Map<String, Entry> index = new HashMap<String, Entry>();
+        int offset = buffer.getInt(ENTRY_OFFSET_OFFSET);
+        int count = buffer.getInt(NUM_ENTRIES_OFFSET);
+        for (int i = 0; i < count && offset + 20 <= buffer.capacity(); i++) {
+            int length = buffer.getInt(offset);
+            if (length <= 0) {
+                break;
+            }
+            Entry entry = new Entry();
+            entry.vectorLength = buffer.getInt(offset + 8);
+            entry.type = buffer.get(offset + 12);
+            entry.units = buffer.get(offset + 14);
+            entry.dataOffset = offset + buffer.getInt(offset + 16);
+            index.put(readString(offset + buffer.getInt(offset + 4), offset + length), entry);
+            offset += length;
+        }
+        entries = index;
+        indexedUsed = used;
+    }
+
+    /**
+     * @return  The names of all the counters in the file
+     */
+    public synchronized Set<String> getNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @param name  The counter name, i.e. java.threads.live
+     * @return      The counter's current value, null if there isn't a numeric counter with the name
+     */
+    public synchronized Long getLong(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.type != TYPE_LONG || entry.vectorLength != 0) {
+            return null;
+        }
+        return buffer.getLong(entry.dataOffset);
+    }
+
+    /**
+     * @param name  The counter name, i.e. sun.gc.collector.0.name
+     * @return      The counter's current value, null if there isn't a string counter with the name
+     */
+    public synchronized String getString(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.type != TYPE_BYTE || entry.vectorLength == 0) {
+            return null;
+        }
+        return readString(entry.dataOffset, entry.dataOffset + entry.vectorLength);
+    }
+
+    /**
+     * @param name  The counter name
+     * @return      The counter's units, i.e. UNITS_TICKS, 0 if there isn't a counter with the name
+     */
+    public synchronized int getUnits(String name) {
+        Entry entry = entries.get(name);
+        return (entry != null) ? entry.units : 0;
+    }
+
+    /**
+     * @return  The file being read
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads a null terminated string
+     *
+     * @param start     Offset of the string
+     * @param limit     Offset the string must end before
+     */
+    private String readString(int start, int limit) {
+        StringBuilder text = new StringBuilder();
+        for (int i = start; i < limit && i < buffer.capacity(); i++) {
+            byte b = buffer.get(i);
+            if (b == 0) {
+                break;
+            }
+            text.append((char) (b & 0xff));
+        }
+        return text.toString();
+    }
+
+    private static class Entry {
+        private int vectorLength;
+        private byte type;
+        private byte units;
+        private int dataOffset;
+    }
+}
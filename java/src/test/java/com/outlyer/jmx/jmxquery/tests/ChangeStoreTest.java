@@ -0,0 +1,75 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.ChangeStore;
+import com.outlyer.jmx.jmxquery.ChangeWriter;
+import com.outlyer.jmx.jmxquery.CounterStore;
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests only values that changed since the last poll are written, with keyframes
+ * 
+ * @author dgildeh
+ */
+public class ChangeStoreTest {
+    
+    public ChangeStoreTest() {
+    }
+    
+    @Test
+    public void testOnlyChangesWritten() throws Exception {
+        ChangeStore store = new ChangeStore(3, CounterStore.DEFAULT_MAX_AGE);
+        int[] written = new int[5];
+        for (int poll = 0; poll < written.length; poll++) {
+            ListWriter list = new ListWriter();
+            ChangeWriter writer = new ChangeWriter(list, store, "url");
+            writer.begin();
+            writer.write(gauge("java.lang:type=OperatingSystem/MaxFileDescriptorCount", 1024L));
+            writer.write(gauge("java.lang:type=Threading/ThreadCount", (poll < 2) ? 10 : 11));
+            writer.write(gauge("java.lang:type=Runtime/VmName", "OpenJDK"));
+            writer.end();
+            written[poll] = list.getMetrics().size();
+            Assert.assertEquals(poll % 3 == 0, writer.isKeyframe());
+        }
+        
+        // Full first poll, then only the changed thread count until the keyframe on the fourth
+        Assert.assertArrayEquals(new int[] { 3, 0, 1, 3, 0 }, written);
+        Assert.assertEquals(3, store.size());
+        
+        // Scopes are polled separately
+        ListWriter list = new ListWriter();
+        ChangeWriter writer = new ChangeWriter(list, store, "other");
+        writer.begin();
+        writer.write(gauge("java.lang:type=Threading/ThreadCount", 11));
+        Assert.assertTrue(writer.isKeyframe());
+        Assert.assertEquals(1, list.getMetrics().size());
+    }
+    
+    @Test
+    public void testBigNumberChangesWritten() throws Exception {
+        ChangeStore store = new ChangeStore(ChangeStore.DEFAULT_KEYFRAME_INTERVAL, CounterStore.DEFAULT_MAX_AGE);
+        ListWriter list = new ListWriter();
+        ChangeWriter writer = new ChangeWriter(list, store, "url");
+        writer.begin();
+        writer.write(gauge("com.example:type=Pool/Ratio", new BigDecimal("1.2")));
+        writer.write(gauge("com.example:type=Pool/Bytes", BigInteger.ONE.shiftLeft(64)));
+        writer.end();
+
+        // The same as longs, but not the same values
+        writer.begin();
+        writer.write(gauge("com.example:type=Pool/Ratio", new BigDecimal("1.7")));
+        writer.write(gauge("com.example:type=Pool/Bytes", BigInteger.ONE.shiftLeft(65)));
+        writer.end();
+        Assert.assertFalse(writer.isKeyframe());
+        Assert.assertEquals(4, list.getMetrics().size());
+    }
+
+    private static JMXMetric gauge(String query, Object value) throws Exception {
+        JMXMetric metric = new JMXMetric(query);
+        metric.setValue(value);
+        return metric;
+    }
+}
@@ -0,0 +1,99 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.CounterStore;
+import com.outlyer.jmx.jmxquery.CounterWriter;
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests counter values are kept between polls and turned into deltas and rates
+ * 
+ * @author dgildeh
+ */
+public class CounterStoreTest {
+    
+    public CounterStoreTest() {
+    }
+    
+    @Test
+    public void testPreviousValueReturned() {
+        CounterStore store = new CounterStore(CounterStore.DEFAULT_MAX_AGE);
+        CounterStore.Sample previous = new CounterStore.Sample();
+        long series = CounterStore.hash("url", "java.lang:type=Threading", "TotalStartedThreadCount", null);
+        
+        Assert.assertFalse(store.update(series, 10, 1000, previous));
+        Assert.assertTrue(store.update(series, 15, 2000, previous));
+        Assert.assertEquals(10, previous.getValue(), 0);
+        Assert.assertEquals(1000, previous.getTime());
+        Assert.assertEquals(1, store.size());
+    }
+    
+    @Test
+    public void testManySeries() {
+        CounterStore store = new CounterStore(CounterStore.DEFAULT_MAX_AGE);
+        CounterStore.Sample previous = new CounterStore.Sample();
+        for (int i = 0; i < 10000; i++) {
+            store.update(CounterStore.hash("url", "bean" + i), i, 1000, previous);
+        }
+        Assert.assertEquals(10000, store.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(store.update(CounterStore.hash("url", "bean" + i), i + 1, 2000, previous));
+            Assert.assertEquals(i, previous.getValue(), 0);
+        }
+    }
+    
+    @Test
+    public void testOldSeriesDropped() {
+        CounterStore store = new CounterStore(1000);
+        CounterStore.Sample previous = new CounterStore.Sample();
+        for (int i = 0; i < 100; i++) {
+            store.update(CounterStore.hash("old" + i), i, 0, previous);
+        }
+        // Resizing drops the series not seen within the max age
+        for (int i = 0; i < 100; i++) {
+            store.update(CounterStore.hash("new" + i), i, 5000, previous);
+        }
+        Assert.assertTrue(store.size() < 200);
+        Assert.assertFalse(store.update(CounterStore.hash("old0"), 1, 5000, previous));
+    }
+    
+    @Test
+    public void testHashSeparatesParts() {
+        Assert.assertTrue(CounterStore.hash("ab", "c") != CounterStore.hash("a", "bc"));
+        Assert.assertTrue(CounterStore.hash("a", null) != CounterStore.hash("a"));
+    }
+    
+    @Test
+    public void testRateAndReset() throws Exception {
+        CounterStore store = new CounterStore(CounterStore.DEFAULT_MAX_AGE);
+        ListWriter list = new ListWriter();
+        CounterWriter writer = new CounterWriter(list, store, "url");
+        
+        writer.write(counter(100L));
+        Assert.assertNull(list.getMetrics().get(0).getDelta());
+        Assert.assertNull(list.getMetrics().get(0).getRate());
+        
+        Thread.sleep(20);
+        writer.write(counter(150L));
+        Assert.assertEquals(50, list.getMetrics().get(1).getDelta(), 0);
+        Assert.assertTrue(list.getMetrics().get(1).getRate() > 0);
+        
+        // Counter went down so it was reset
+        writer.write(counter(20L));
+        Assert.assertEquals(20, list.getMetrics().get(2).getDelta(), 0);
+        
+        // Only metrics marked as counters get rates
+        JMXMetric gauge = new JMXMetric("jvm_threads==java.lang:type=Threading/ThreadCount");
+        gauge.setValue(5);
+        writer.write(gauge);
+        writer.write(gauge);
+        Assert.assertNull(list.getMetrics().get(4).getDelta());
+    }
+    
+    private static JMXMetric counter(Object value) throws Exception {
+        JMXMetric metric = new JMXMetric("jvm_threads_started[counter]==java.lang:type=Threading/TotalStartedThreadCount");
+        metric.setValue(value);
+        return metric;
+    }
+}
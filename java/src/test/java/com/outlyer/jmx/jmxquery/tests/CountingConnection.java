@@ -0,0 +1,59 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.MBeanServerConnection;
+
+/**
+ * Test helper that wraps the platform MBeanServer and counts the calls made
+ * on it, so tests can check how many round trips a query would cost remotely
+ * 
+ * @author dgildeh
+ */
+public class CountingConnection implements InvocationHandler {
+    
+    private final MBeanServerConnection target;
+    private final Map<String, Integer> calls = new HashMap<String, Integer>();
+    
+    public CountingConnection() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+    
+    public CountingConnection(MBeanServerConnection target) {
+        this.target = target;
+    }
+    
+    /**
+     * @return  A connection proxy that counts each call made to it
+     */
+    public MBeanServerConnection getConnection() {
+        return (MBeanServerConnection) Proxy.newProxyInstance(
+                MBeanServerConnection.class.getClassLoader(),
+                new Class<?>[]{MBeanServerConnection.class}, this);
+    }
+    
+    public synchronized int getCount(String method) {
+        Integer count = calls.get(method);
+        return (count == null) ? 0 : count;
+    }
+    
+    public synchronized void reset() {
+        calls.clear();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        synchronized (this) {
+            calls.put(method.getName(), getCount(method.getName()) + 1);
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.JMXConnector;
+import com.outlyer.jmx.jmxquery.JMXConnectorPool;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests connection reuse, reconnecting and backoff in the connection pool
+ * 
+ * @author dgildeh
+ */
+public class JMXConnectorPoolTest {
+    
+    private static final String BAD_URL = "service:jmx:rmi:///jndi/rmi://localhost:1/jmxrmi";
+    
+    private static JMXConnectorServer server;
+    private static String url;
+    
+    private JMXConnectorPool pool;
+    
+    public JMXConnectorPoolTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"), 
+                null, ManagementFactory.getPlatformMBeanServer());
+        server.start();
+        url = server.getAddress().toString();
+    }
+    
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.stop();
+    }
+    
+    @Before
+    public void setUp() {
+        pool = new JMXConnectorPool(JMXConnectorPool.DEFAULT_IDLE_TIMEOUT);
+    }
+    
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+    
+    @Test
+    public void testConnectionReused() throws Exception {
+        JMXConnector first = pool.acquire(url, null, null);
+        pool.release(first);
+        JMXConnector second = pool.acquire(url, null, null);
+        pool.release(second);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, pool.size());
+    }
+    
+    @Test
+    public void testInvalidatedConnectionReconnects() throws Exception {
+        JMXConnector first = pool.acquire(url, null, null);
+        pool.invalidate(first);
+        pool.release(first);
+        JMXConnector second = pool.acquire(url, null, null);
+        pool.release(second);
+        Assert.assertNotSame(first, second);
+        second.ping();
+    }
+    
+    @Test
+    public void testWarmConnectionRestored() throws Exception {
+        pool.warm(url, null, null);
+        JMXConnector first = pool.acquire(url, null, null);
+        pool.release(first);
+        first.disconnect();
+        
+        // Idle probe finds the closed connection and the warm entry reconnects
+        pool.setProbeInterval(-1);
+        pool.maintain();
+        JMXConnector second = pool.acquire(url, null, null);
+        pool.release(second);
+        Assert.assertNotSame(first, second);
+        second.ping();
+    }
+    
+    @Test
+    public void testFailedConnectionBacksOff() throws Exception {
+        pool.setBackoff(60000, 60000);
+        try {
+            pool.acquire(BAD_URL, null, null);
+            Assert.fail("Connected to closed port");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            pool.acquire(BAD_URL, null, null);
+            Assert.fail("Connected to closed port");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Not connecting to " + BAD_URL));
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.BinaryMetricWriter;
+import com.outlyer.jmx.jmxquery.CollectorStats;
+import com.outlyer.jmx.jmxquery.ConnectionStats;
+import com.outlyer.jmx.jmxquery.JMXConnector;
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.JSONWriter;
+import com.outlyer.jmx.jmxquery.MBeanCache;
+import com.outlyer.jmx.jmxquery.OpenMetricsWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs queries against the JVM running the tests via the platform MBeanServer
+ * 
+ * @author dgildeh
+ */
+public class JMXConnectorTest {
+    
+    private CountingConnection counter;
+    private JMXConnector connector;
+    
+    public JMXConnectorTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+        counter = new CountingConnection();
+        connector = new JMXConnector(counter.getConnection());
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        // Removes the cache's registration listener from the platform MBeanServer
+        connector.disconnect();
+    }
+    
+    private ArrayList<JMXMetric> query(String... queries) throws Exception {
+        ArrayList<JMXMetric> metrics = new ArrayList<JMXMetric>();
+        for (String query : queries) {
+            metrics.add(new JMXMetric(query));
+        }
+        return connector.getMetrics(metrics);
+    }
+    
+    @Test
+    public void testCompositeAttributeKey() throws Exception {
+        ArrayList<JMXMetric> metrics = query("java.lang:type=Memory/HeapMemoryUsage/used");
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertEquals("java.lang:type=Memory", metrics.get(0).getmBeanName());
+        Assert.assertEquals("HeapMemoryUsage", metrics.get(0).getAttribute());
+        Assert.assertEquals("used", metrics.get(0).getAttributeKey());
+        Assert.assertEquals("Long", metrics.get(0).getAttributeType());
+        Assert.assertTrue(metrics.get(0).getValue() instanceof Long);
+    }
+    
+    @Test
+    public void testAllCompositeKeys() throws Exception {
+        ArrayList<JMXMetric> metrics = query("java.lang:type=Memory/HeapMemoryUsage");
+        Assert.assertEquals(4, metrics.size());
+    }
+    
+    @Test
+    public void testAttributesReadInOneCall() throws Exception {
+        ArrayList<JMXMetric> metrics = query("java.lang:type=Threading");
+        Assert.assertTrue(metrics.size() > 5);
+        Assert.assertEquals(1, counter.getCount("getAttributes"));
+        // Only attributes that fail to read in the batch are retried one by one
+        Assert.assertTrue(counter.getCount("getAttribute") < metrics.size());
+    }
+    
+    @Test
+    public void testFullyQualifiedQueryReadDirectly() throws Exception {
+        ArrayList<JMXMetric> metrics = query("java.lang:type=Memory/HeapMemoryUsage/used");
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertEquals(1, counter.getCount("getAttribute"));
+        Assert.assertEquals(0, counter.getCount("queryMBeans"));
+        Assert.assertEquals(0, counter.getCount("getMBeanInfo"));
+    }
+    
+    @Test
+    public void testConnectionStats() throws Exception {
+        ConnectionStats stats = new ConnectionStats();
+        connector.setStats(stats);
+        query("java.lang:type=Memory/HeapMemoryUsage/used", "java.lang:type=Threading");
+        query("java.lang:type=Memory/HeapMemoryUsage/used");
+        
+        ConnectionStats.QueryStats direct = stats.getQuery("java.lang:type=Memory/HeapMemoryUsage/used");
+        Assert.assertEquals(2, direct.getRuns());
+        Assert.assertEquals(2, direct.getCalls("getAttribute").getCalls());
+        Assert.assertNull(direct.getCalls("queryNames"));
+        
+        ConnectionStats.QueryStats wildcard = stats.getQuery("java.lang:type=Threading");
+        Assert.assertEquals(1, wildcard.getRuns());
+        Assert.assertEquals(1, wildcard.getCalls("getAttributes").getCalls());
+        Assert.assertEquals(1, wildcard.getCalls("getMBeanInfo").getCalls());
+        Assert.assertTrue(wildcard.getCalls("getAttributes").getPercentile(0.99) 
+                >= wildcard.getCalls("getAttributes").getMax());
+        
+        // Listening for MBean registrations isn't part of any query
+        Assert.assertNotNull(stats.getQuery(ConnectionStats.CONNECTION).getCalls("addNotificationListener"));
+    }
+    
+    @Test
+    public void testSelfMetrics() throws Exception {
+        connector.setSelfMetrics(true);
+        long scrapes = CollectorStats.get().getScrapes();
+        ArrayList<JMXMetric> metrics = query("java.lang:type=Memory/HeapMemoryUsage/used", "java.lang:type=Threading");
+        
+        HashMap<String, JMXMetric> self = new HashMap<String, JMXMetric>();
+        for (JMXMetric metric : metrics) {
+            if (CollectorStats.OBJECT_NAME.equals(metric.getmBeanName())) {
+                self.put(metric.getmetricName() + metric.getmetricLabels(), metric);
+            }
+        }
+        Assert.assertEquals(7, self.size());
+        Assert.assertEquals("jmxquery_scrape_duration_seconds", metrics.get(metrics.size() - 1).getmetricName());
+        Assert.assertTrue(self.containsKey("jmxquery_query_duration_seconds{query=java.lang:type=Threading}"));
+        Assert.assertEquals(2L, self.get("jmxquery_mbeans_matched{}").getValue());
+        // One metric is written for each attribute read or left Null
+        long collected = metrics.size() - self.size();
+        Assert.assertTrue((Long) self.get("jmxquery_attributes_read{}").getValue() >= collected - countNulls(metrics));
+        Assert.assertEquals(countNulls(metrics), self.get("jmxquery_null_values{}").getValue());
+        Assert.assertTrue(self.get("jmxquery_connection_errors{}").isCounter());
+        
+        // Totals are kept for the MBean
+        Assert.assertEquals(scrapes + 1, CollectorStats.get().getScrapes());
+        CollectorStats.get().register();
+        Assert.assertEquals(scrapes + 1, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(CollectorStats.OBJECT_NAME), "Scrapes"));
+    }
+    
+    private static long countNulls(ArrayList<JMXMetric> metrics) {
+        long nulls = 0;
+        for (JMXMetric metric : metrics) {
+            if ("Null".equals(metric.getAttributeType())) {
+                nulls++;
+            }
+        }
+        return nulls;
+    }
+    
+    @Test
+    public void testUnexpandedTablesNotCountedAsNulls() throws Exception {
+        connector.setSelfMetrics(true);
+        ArrayList<JMXMetric> metrics = query("java.lang:type=Runtime/SystemProperties");
+        Assert.assertNull(metrics.get(0).getValue());
+        Assert.assertEquals("TabularDataSupport", metrics.get(0).getAttributeType());
+        for (JMXMetric metric : metrics) {
+            if ("jmxquery_null_values".equals(metric.getmetricName())) {
+                Assert.assertEquals(0L, metric.getValue());
+                return;
+            }
+        }
+        Assert.fail("No null values self metric");
+    }
+    
+    @Test
+    public void testTableRowsSelected() throws Exception {
+        ArrayList<JMXMetric> metrics = query("java.lang:type=Runtime/SystemProperties/java.version|java.vendor");
+        Assert.assertEquals(2, metrics.size());
+        for (JMXMetric metric : metrics) {
+            String property = metric.getIndex().get("key");
+            Assert.assertEquals(property + "/value", metric.getAttributeKey());
+            Assert.assertEquals(System.getProperty(property), metric.getValue());
+        }
+        
+        // Table isn't expanded unless rows are selected
+        metrics = query("java.lang:type=Runtime/SystemProperties");
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertNull(metrics.get(0).getValue());
+        
+        Assert.assertEquals(System.getProperties().size(), 
+                query("java.lang:type=Runtime/SystemProperties/*").size());
+        Assert.assertEquals("java.version", 
+                query("java.lang:type=Runtime/SystemProperties/java.version/key").get(0).getValue());
+    }
+    
+    @Test
+    public void testTableCellTokens() throws Exception {
+        ArrayList<JMXMetric> metrics = query("jvm_property_{column}<name={key}>==java.lang:type=Runtime/SystemProperties/java.version");
+        Assert.assertEquals(1, metrics.size());
+        metrics.get(0).replaceTokens();
+        Assert.assertEquals("jvm_property_value<name=java.version,key=java.version> (String) = " 
+                + System.getProperty("java.version"), metrics.get(0).toString());
+    }
+    
+    @Test
+    public void testPredicatesRunByServer() throws Exception {
+        int collectors = query("java.lang:type=GarbageCollector,*/CollectionCount").size();
+        Assert.assertTrue(collectors > 0);
+        
+        counter.reset();
+        Assert.assertEquals(collectors, query("java.lang:type=GarbageCollector,*/CollectionCount[CollectionCount>=0]").size());
+        Assert.assertEquals(1, counter.getCount("queryNames"));
+        Assert.assertEquals(0, query("java.lang:type=GarbageCollector,*/CollectionCount[CollectionCount<0]").size());
+        Assert.assertEquals(0, query("java.lang:type=GarbageCollector,*/CollectionCount[@name=DoesNotExist*]").size());
+        Assert.assertEquals(collectors, query("java.lang:type=GarbageCollector,*/CollectionCount[class=java.lang.management.GarbageCollectorMXBean]").size());
+        
+        // Fully qualified names are still checked against the predicates
+        Assert.assertEquals(0, query("java.lang:type=Threading/ThreadCount[ThreadCount<1]").size());
+        Assert.assertEquals(1, query("java.lang:type=Threading/ThreadCount[ThreadCount>=1]").size());
+    }
+    
+    @Test
+    public void testMissingAttribute() throws Exception {
+        Assert.assertEquals(0, query("java.lang:type=Memory/DoesNotExist").size());
+    }
+    
+    @Test
+    public void testMBeanInfoCached() throws Exception {
+        query("java.lang:type=Threading");
+        int infoCalls = counter.getCount("getMBeanInfo");
+        query("java.lang:type=Threading");
+        Assert.assertEquals(infoCalls, counter.getCount("getMBeanInfo"));
+    }
+    
+    @Test
+    public void testMBeanInfoEvictedOnUnregister() throws Exception {
+        ObjectName name = new ObjectName("com.outlyer.test:type=Cached");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new StandardMBean(new Cached(), CachedMBean.class), name);
+        try {
+            Assert.assertEquals(1, query("com.outlyer.test:type=Cached,*/Value").size());
+            int infoCalls = counter.getCount("getMBeanInfo");
+            
+            server.unregisterMBean(name);
+            server.registerMBean(new StandardMBean(new Cached(), CachedMBean.class), name);
+            
+            Assert.assertEquals(1, query("com.outlyer.test:type=Cached,*/Value").size());
+            Assert.assertEquals(infoCalls + 1, counter.getCount("getMBeanInfo"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+    
+    @Test
+    public void testMBeanInfoNotCachedIfReregisteredWhileFetching() throws Exception {
+        final ObjectName name = new ObjectName("com.outlyer.test:type=Refetched");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final CountingConnection infoCounter = new CountingConnection();
+        MBeanServerConnection connection = (MBeanServerConnection) Proxy.newProxyInstance(
+                MBeanServerConnection.class.getClassLoader(), new Class<?>[]{MBeanServerConnection.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result;
+                        try {
+                            result = method.invoke(infoCounter.getConnection(), args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if (method.getName().equals("getMBeanInfo")) {
+                            // The MBean is replaced after its info was read
+                            server.unregisterMBean(name);
+                            server.registerMBean(new StandardMBean(new Cached(), CachedMBean.class), name);
+                        }
+                        return result;
+                    }
+                });
+        
+        server.registerMBean(new StandardMBean(new Cached(), CachedMBean.class), name);
+        MBeanCache cache = new MBeanCache(connection, MBeanCache.DEFAULT_TTL);
+        Assert.assertTrue(cache.listen());
+        try {
+            cache.getAttributes(name);
+            cache.getAttributes(name);
+            Assert.assertEquals(2, infoCounter.getCount("getMBeanInfo"));
+        } finally {
+            cache.close();
+            server.unregisterMBean(name);
+        }
+    }
+    
+    @Test
+    public void testPatternExpansionCached() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName first = new ObjectName("com.outlyer.test:type=Pattern,name=first");
+        ObjectName second = new ObjectName("com.outlyer.test:type=Pattern,name=second");
+        server.registerMBean(new StandardMBean(new Cached(), CachedMBean.class), first);
+        try {
+            Assert.assertEquals(1, query("com.outlyer.test:type=Pattern,*/Value").size());
+            Assert.assertEquals(1, counter.getCount("queryNames"));
+            
+            // New MBeans are picked up from the registration notification
+            server.registerMBean(new StandardMBean(new Cached(), CachedMBean.class), second);
+            Assert.assertEquals(2, query("com.outlyer.test:type=Pattern,*/Value").size());
+            server.unregisterMBean(second);
+            Assert.assertEquals(1, query("com.outlyer.test:type=Pattern,*/Value").size());
+            Assert.assertEquals(1, counter.getCount("queryNames"));
+        } finally {
+            server.unregisterMBean(first);
+        }
+    }
+    
+    @Test
+    public void testConcurrentQueriesKeepOrder() throws Exception {
+        String[] queries = {"java.lang:type=ClassLoading/LoadedClassCount",
+                            "java.lang:type=GarbageCollector,*/CollectionCount",
+                            "java.lang:type=Memory/HeapMemoryUsage",
+                            "java.lang:type=MemoryPool,*/Usage/used",
+                            "java.lang:type=Threading/ThreadCount"};
+        ArrayList<JMXMetric> expected = query(queries);
+        
+        connector.setConcurrency(4);
+        ArrayList<JMXMetric> metrics = query(queries);
+        
+        Assert.assertEquals(expected.size(), metrics.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getmBeanName(), metrics.get(i).getmBeanName());
+            Assert.assertEquals(expected.get(i).getAttribute(), metrics.get(i).getAttribute());
+            Assert.assertEquals(expected.get(i).getAttributeKey(), metrics.get(i).getAttributeKey());
+        }
+    }
+    
+    @Test
+    public void testQueryFailureIsolated() throws Exception {
+        for (int concurrency : new int[] { 1, 4 }) {
+            connector.setConcurrency(concurrency);
+            ArrayList<JMXMetric> metrics = query("java.lang:type=Threading/ThreadCount", 
+                    "not an object name", "java.lang:type=Runtime/Uptime");
+            
+            Assert.assertEquals(3, metrics.size());
+            Assert.assertEquals("ThreadCount", metrics.get(0).getAttribute());
+            Assert.assertNull(metrics.get(0).getError());
+            Assert.assertEquals("not an object name", metrics.get(1).getmBeanName());
+            Assert.assertTrue(metrics.get(1).getError().contains("MalformedObjectNameException"));
+            Assert.assertNull(metrics.get(1).getValue());
+            Assert.assertEquals("Uptime", metrics.get(2).getAttribute());
+            Assert.assertTrue(metrics.get(1).toJSON().contains("\"error\" : \"javax.management.MalformedObjectNameException"));
+        }
+    }
+    
+    public interface CachedMBean {
+        public int getValue();
+    }
+    
+    public static class Cached implements CachedMBean {
+        public int getValue() {
+            return 1;
+        }
+    }
+    
+    @Test
+    public void testWildcardQuery() throws Exception {
+        ArrayList<JMXMetric> metrics = query("java.lang:type=GarbageCollector,*/CollectionCount");
+        Assert.assertTrue(metrics.size() > 0);
+        for (JMXMetric metric : metrics) {
+            Assert.assertEquals("CollectionCount", metric.getAttribute());
+            Assert.assertTrue(metric.getmBeanName().contains("type=GarbageCollector"));
+        }
+    }
+    
+    @Test
+    public void testMissingMBean() throws Exception {
+        ArrayList<JMXMetric> metrics = query("java.lang:type=DoesNotExist/Value");
+        Assert.assertEquals(0, metrics.size());
+    }
+    
+    @Test
+    public void testStreamedJSON() throws Exception {
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("java.lang:type=Memory/HeapMemoryUsage"));
+        queries.add(new JMXMetric("java.lang:type=Threading/ThreadCount"));
+        StringWriter json = new StringWriter();
+        JSONWriter writer = new JSONWriter(json, false);
+        connector.getMetrics(queries, writer);
+        Assert.assertEquals(5, writer.getCount());
+        Assert.assertTrue(json.toString().startsWith("[{\"mBeanName\" : \"java.lang:type=Memory\""));
+        Assert.assertTrue(json.toString().matches(
+                ".*\"attribute\" : \"ThreadCount\", \"attributeType\" : \"Integer\", \"value\" : \\d+\\}\\]"));
+    }
+    
+    @Test
+    public void testJSONFailureStillValid() throws Exception {
+        StringWriter json = new StringWriter();
+        JSONWriter writer = new JSONWriter(json, false);
+        writer.begin();
+        writer.write(query("java.lang:type=Threading/ThreadCount").get(0));
+        writer.fail("query-connection-error", "Connection reset");
+        Assert.assertTrue(json.toString().matches("\\[\\{\"mBeanName\" : .*\\}, "
+                + "\\{ \"error\": \"query-connection-error\", \"message\":\"Connection reset\"\\}\\]"));
+        
+        // Nothing written yet, the error is written on its own
+        json = new StringWriter();
+        new JSONWriter(json, false).fail("bad-query", "Bad");
+        Assert.assertEquals(JSONWriter.error("bad-query", "Bad") + "\n", json.toString());
+    }
+    
+    @Test
+    public void testOpenMetrics() throws Exception {
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("jvm_memory_{attributeKey}<area=heap>==java.lang:type=Memory/HeapMemoryUsage"));
+        queries.add(new JMXMetric("java.lang:type=MemoryPool,*/Usage/used"));
+        queries.add(new JMXMetric("jvm_memory_used<area=nonheap>==java.lang:type=Memory/NonHeapMemoryUsage/used"));
+        queries.add(new JMXMetric("java.lang:type=Runtime/VmName"));
+        StringWriter text = new StringWriter();
+        connector.getMetrics(queries, new OpenMetricsWriter(text));
+        
+        String[] lines = text.toString().split("\n");
+        Assert.assertEquals("# TYPE jvm_memory_committed unknown", lines[0]);
+        Assert.assertEquals("# HELP jvm_memory_committed java.lang:type=Memory/HeapMemoryUsage/committed", lines[1]);
+        Assert.assertTrue(lines[2].matches("jvm_memory_committed\\{area=\"heap\"\\} \\d+"));
+        Assert.assertEquals("# EOF", lines[lines.length - 1]);
+        Assert.assertFalse(text.toString().contains("VmName"));
+        
+        // Samples from the same family are written together
+        int used = text.toString().indexOf("# TYPE jvm_memory_used unknown\n");
+        Assert.assertTrue(text.toString().substring(used).matches("(?s)[^\\n]*\n[^\\n]*\n"
+                + "jvm_memory_used\\{area=\"heap\"\\} \\d+\njvm_memory_used\\{area=\"nonheap\"\\} \\d+\n.*"));
+        Assert.assertTrue(text.toString().matches("(?s).*\njava_lang_Usage_used\\{(type=\"MemoryPool\",)?name=\"[^\"]+\"(,type=\"MemoryPool\")?\\} \\d+\n.*"));
+    }
+    
+    @Test
+    public void testOpenMetricsTypeAndHelp() throws Exception {
+        String mBean = "Catalina:type=GlobalRequestProcessor,name=\"http-nio-8080\"";
+        StringWriter text = new StringWriter();
+        OpenMetricsWriter writer = new OpenMetricsWriter(text);
+        writer.begin();
+        for (String query : new String[] {"tomcat_requests[counter]==", "tomcat_busy[gauge]==", "tomcat_bytes=="}) {
+            JMXMetric metric = new JMXMetric(query + mBean + "/value");
+            metric.setValue(1);
+            writer.write(metric);
+        }
+        writer.end();
+
+        String[] lines = text.toString().split("\n");
+        Assert.assertEquals("# TYPE tomcat_requests counter", lines[0]);
+        Assert.assertEquals("# HELP tomcat_requests Catalina:type=GlobalRequestProcessor,name=\\\"http-nio-8080\\\"/value", lines[1]);
+        Assert.assertEquals("# TYPE tomcat_busy gauge", lines[3]);
+        Assert.assertEquals("# TYPE tomcat_bytes unknown", lines[6]);
+    }
+
+    @Test
+    public void testBinaryOutput() throws Exception {
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("java.lang:type=Memory/HeapMemoryUsage"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMetricWriter writer = new BinaryMetricWriter(bytes);
+        connector.getMetrics(queries, writer);
+        Assert.assertEquals(4, writer.getCount());
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        Assert.assertEquals("JMXQ", new String(magic, "UTF-8"));
+        Assert.assertEquals(BinaryMetricWriter.VERSION, in.readByte());
+        
+        // Repeated names are only written to the string table once
+        ArrayList<String> strings = new ArrayList<String>();
+        int metrics = 0;
+        int type;
+        while ((type = in.readByte()) != 3) {
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            if (type == 1) {
+                strings.add(new String(payload, "UTF-8"));
+            } else {
+                DataInputStream metric = new DataInputStream(new ByteArrayInputStream(payload));
+                Assert.assertEquals(-1, metric.readInt());
+                Assert.assertEquals(0, metric.readShort());
+                Assert.assertEquals("java.lang:type=Memory", strings.get(metric.readInt()));
+                Assert.assertEquals("HeapMemoryUsage", strings.get(metric.readInt()));
+                metric.readInt();
+                Assert.assertEquals("Long", strings.get(metric.readInt()));
+                Assert.assertEquals(1, metric.readByte());
+                metric.readLong();
+                metrics++;
+            }
+        }
+        Assert.assertEquals(4, metrics);
+        Assert.assertEquals(7, strings.size());
+        Assert.assertEquals(0, in.readInt());
+    }
+    
+    @Test
+    public void testBinaryFailureEndsOutput() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMetricWriter writer = new BinaryMetricWriter(bytes);
+        writer.begin();
+        writer.write(query("java.lang:type=Threading/ThreadCount").get(0));
+        writer.fail("query-connection-error", "Connection reset");
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        in.skipBytes(5);
+        int type;
+        while ((type = in.readByte()) != 4) {
+            in.skipBytes(in.readInt());
+        }
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        Assert.assertEquals("query-connection-error: Connection reset", new String(payload, "UTF-8"));
+        Assert.assertEquals(3, in.readByte());
+        Assert.assertEquals(0, in.readInt());
+        Assert.assertEquals(-1, in.read());
+    }
+}
@@ -0,0 +1,184 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.JMXConnector;
+import com.outlyer.jmx.jmxquery.JMXConnectorPool;
+import com.outlyer.jmx.jmxquery.JMXDaemon;
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.JMXTarget;
+import com.outlyer.jmx.jmxquery.JSONWriter;
+import com.outlyer.jmx.jmxquery.TimeSeriesStore;
+import com.outlyer.jmx.jmxquery.TimeSeriesWriter;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the daemon against an RMI connector server for the JVM running the tests
+ * 
+ * @author dgildeh
+ */
+public class JMXDaemonTest {
+    
+    private static JMXConnectorServer server;
+    private static String url;
+    
+    private JMXConnectorPool pool;
+    private JMXDaemon daemon;
+    private Thread daemonThread;
+    private volatile Exception daemonFailure;
+    
+    public JMXDaemonTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"), 
+                null, ManagementFactory.getPlatformMBeanServer());
+        server.start();
+        url = server.getAddress().toString();
+    }
+    
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.stop();
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        pool = new JMXConnectorPool(JMXConnectorPool.DEFAULT_IDLE_TIMEOUT);
+        daemon = new JMXDaemon(0, new JMXTarget(url, null, null), pool);
+        daemonThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.run(60000);
+                } catch (Exception e) {
+                    daemonFailure = e;
+                }
+            }
+        };
+        daemonThread.start();
+        while (daemon.getPort() == 0 && daemonThread.isAlive()) {
+            Thread.sleep(10);
+        }
+        if (daemonFailure != null) {
+            throw daemonFailure;
+        }
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        daemon.stop();
+        daemonThread.join(5000);
+        if (daemonFailure != null) {
+            throw daemonFailure;
+        }
+    }
+    
+    @Test
+    public void testRequestsShareConnection() throws Exception {
+        Socket socket = new Socket("localhost", daemon.getPort());
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            
+            out.print("query=java.lang:type=Memory/HeapMemoryUsage/used\n\n");
+            out.print("url=" + url + "\nquery=java.lang:type=Threading/ThreadCount\n\n");
+            out.flush();
+            
+            String first = in.readLine();
+            Assert.assertTrue(first, first.startsWith("[{"));
+            Assert.assertTrue(first, first.contains("\"attributeKey\" : \"used\""));
+            String second = in.readLine();
+            Assert.assertTrue(second, second.contains("\"attribute\" : \"ThreadCount\""));
+            Assert.assertEquals(1, pool.size());
+        } finally {
+            socket.close();
+        }
+    }
+    
+    @Test
+    public void testBadRequest() throws Exception {
+        Socket socket = new Socket("localhost", daemon.getPort());
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            
+            out.print("url=service:jmx:rmi:///jndi/rmi://localhost:1/jmxrmi\nquery=java.lang:type=Runtime/Uptime\n\n");
+            out.print("unknown=value\nquery=java.lang:type=Runtime/Uptime\nnot a key value line\n\n");
+            char[] longLine = new char[JMXTarget.MAX_LINE_LENGTH + 1];
+            Arrays.fill(longLine, 'a');
+            out.print("query=" + new String(longLine) + "\nquery=java.lang:type=Runtime/Uptime\n\n");
+            out.print("query=java.lang:type=Threading/ThreadCount\n\n");
+            out.flush();
+            
+            Assert.assertTrue(in.readLine().contains("\"error\": \"connection-error\""));
+            
+            // One response for each bad block, the rest of the block isn't read as another request
+            String line = in.readLine();
+            Assert.assertTrue(line, line.contains("\"error\": \"bad-query\""));
+            Assert.assertTrue(line, line.contains("unknown"));
+            line = in.readLine();
+            Assert.assertTrue(line, line.contains("\"error\": \"bad-query\""));
+            Assert.assertTrue(line, line.contains("longer than"));
+            line = in.readLine();
+            Assert.assertTrue(line, line.contains("\"attribute\" : \"ThreadCount\""));
+        } finally {
+            socket.close();
+        }
+    }
+    
+    @Test
+    public void testWindowRequest() throws Exception {
+        TimeSeriesStore history = new TimeSeriesStore(10, 10);
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("java.lang:type=Threading/ThreadCount"));
+        JMXConnector connector = new JMXConnector(ManagementFactory.getPlatformMBeanServer());
+        try {
+            for (int i = 0; i < 3; i++) {
+                connector.getMetrics(queries, new TimeSeriesWriter(new JSONWriter(new StringWriter(), false), 
+                        history, url));
+            }
+        } finally {
+            connector.disconnect();
+        }
+        
+        Socket socket = new Socket("localhost", daemon.getPort());
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            
+            out.print("query=java.lang:type=Threading/ThreadCount\nwindow=60\n\n");
+            out.flush();
+            String line = in.readLine();
+            Assert.assertTrue(line, line.contains("\"error\": \"bad-query\""));
+            
+            daemon.setHistory(history);
+            out.print("query=java.lang:type=Threading/ThreadCount\nwindow=60\n\n");
+            out.print("query=java.lang:type=Threading/ThreadCount\n\n");
+            out.flush();
+            line = in.readLine();
+            Assert.assertTrue(line, line.matches(".*\"window\" : \\{\"count\" : 3, \"min\" : [0-9.]+, "
+                    + "\"max\" : [0-9.]+, \"avg\" : [0-9.]+, \"last\" : [0-9.]+\\}.*"));
+            line = in.readLine();
+            Assert.assertFalse(line, line.contains("\"window\""));
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.JMXFanOut;
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.JMXTarget;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Collects from targets served by an RMI connector server for the JVM running
+ * the tests, and from targets that fail or never answer
+ *
+ * @author dgildeh
+ */
+public class JMXFanOutTest {
+
+    private static final String SLOW = "com.outlyer.jmx.jmxquery.tests:type=Slow";
+
+    private static JMXConnectorServer server;
+    private static String url;
+
+    public interface SlowMBean {
+        public int getValue();
+    }
+
+    public static class Slow implements SlowMBean {
+        public int getValue() {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                // Test finished
+            }
+            return 0;
+        }
+    }
+
+    public JMXFanOutTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(new Slow(), SlowMBean.class), new ObjectName(SLOW));
+        server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"),
+                null, ManagementFactory.getPlatformMBeanServer());
+        server.start();
+        url = server.getAddress().toString();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.stop();
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(SLOW));
+    }
+
+    private static JMXTarget target(String name, String url, String query) throws Exception {
+        JMXTarget target = new JMXTarget(url, null, null);
+        target.setName(name);
+        if (query != null) {
+            target.addQueries(query);
+        }
+        return target;
+    }
+
+    private static String[] run(int parallel, long timeout, JMXTarget... targets) throws Exception {
+        ArrayList<JMXMetric> metrics = new ArrayList<JMXMetric>();
+        metrics.add(new JMXMetric("java.lang:type=Memory/HeapMemoryUsage/used"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JMXFanOut(parallel, timeout, metrics).run(Arrays.asList(targets), new PrintStream(out, true), true);
+        return out.toString("UTF-8").split("\n");
+    }
+
+    @Test
+    public void testResultsTaggedInOrder() throws Exception {
+        String[] lines = run(1, JMXFanOut.DEFAULT_TIMEOUT, target("first", url, null),
+                target("second", url, "java.lang:type=Threading/ThreadCount"));
+        Assert.assertEquals(2, lines.length);
+        Assert.assertTrue(lines[0], lines[0].startsWith("{\"target\" : \"first\", \"metrics\" : ["));
+        Assert.assertTrue(lines[0], lines[0].contains("\"HeapMemoryUsage\""));
+        Assert.assertTrue(lines[1], lines[1].startsWith("{\"target\" : \"second\", \"metrics\" : ["));
+        Assert.assertTrue(lines[1], lines[1].contains("\"ThreadCount\""));
+    }
+
+    @Test
+    public void testErrorsReportedPerTarget() throws Exception {
+        // Nothing listening on port 1
+        String[] lines = run(2, JMXFanOut.DEFAULT_TIMEOUT,
+                target("down", "service:jmx:rmi:///jndi/rmi://localhost:1/jmxrmi", null),
+                target("up", url, null));
+        Assert.assertEquals(2, lines.length);
+        Arrays.sort(lines);
+        Assert.assertTrue(lines[0], lines[0].startsWith(
+                "{\"target\" : \"down\", \"error\" : \"connection-error\""));
+        Assert.assertTrue(lines[1], lines[1].startsWith("{\"target\" : \"up\", \"metrics\" : ["));
+    }
+
+    @Test
+    public void testHungTargetsTimeOut() throws Exception {
+        // Accepts connections but never answers, so connecting hangs
+        ServerSocket hung = new ServerSocket(0);
+        try {
+            String hungUrl = "service:jmx:rmi:///jndi/rmi://localhost:" + hung.getLocalPort() + "/jmxrmi";
+            long start = System.currentTimeMillis();
+            // One slot, so the last target only runs if the hung ones give theirs up
+            String[] lines = run(1, 1000, target("connecting", hungUrl, null),
+                    target("querying", url, SLOW + "/Value"), target("up", url, null));
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+            Assert.assertEquals(3, lines.length);
+            Assert.assertTrue(lines[0], lines[0].startsWith(
+                    "{\"target\" : \"connecting\", \"error\" : \"timeout\""));
+            Assert.assertTrue(lines[1], lines[1].startsWith(
+                    "{\"target\" : \"querying\", \"error\" : \"timeout\""));
+            Assert.assertTrue(lines[2], lines[2].startsWith("{\"target\" : \"up\", \"metrics\" : ["));
+        } finally {
+            hung.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.outlyer.jmx.jmxquery.tests;
 
 import com.outlyer.jmx.jmxquery.JMXMetric;
 import com.outlyer.jmx.jmxquery.ParseError;
+import javax.management.ObjectName;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -109,4 +110,73 @@ public class JMXParserTest {
         Assert.assertEquals("HeapMemoryUsage", m.getAttribute());
         Assert.assertEquals("used", m.getAttributeKey());
     }
+    
+    @Test
+    public void testJSONEscaped() throws ParseError {
+        JMXMetric m = new JMXMetric("Tomcat:type=DataSource,name=\"jdbc\\storage\"/numIdle");
+        m.setAttributeType("Line 1\nLine 2\t\u0001");
+        m.setValue("Line 1\nLine 2\t\u0001");
+        Assert.assertEquals("{\"mBeanName\" : \"Tomcat:type=DataSource,name=\\\"jdbc\\\\storage\\\"\", "
+                + "\"attribute\" : \"numIdle\", \"attributeType\" : \"String\", "
+                + "\"value\" : \"Line 1\\nLine 2\\t\\u0001\"}", m.toJSON());
+    }
+    
+    @Test
+    public void testResultTokenReplacements() throws Exception {
+        String q = "jvm_{type}_{attribute}_{attributeKey}<pool={name},other={missing},fixed=a b>==java.lang:type=MemoryPool,*/Usage";
+        JMXMetric query = new JMXMetric(q);
+        ObjectName name = new ObjectName("java.lang:type=MemoryPool,name=\"Code Cache\"");
+        
+        JMXMetric first = query.newResult(name, name.toString(), "Usage", "used");
+        JMXMetric second = query.newResult(name, name.toString(), "Usage", "max");
+        first.replaceTokens();
+        second.replaceTokens();
+        
+        Assert.assertEquals("jvm_MemoryPool_Usage_used", first.getmetricName());
+        Assert.assertEquals("jvm_MemoryPool_Usage_max", second.getmetricName());
+        Assert.assertEquals("Code_Cache", first.getmetricLabels().get("pool"));
+        Assert.assertEquals("{missing}", first.getmetricLabels().get("other"));
+        Assert.assertEquals("a b", first.getmetricLabels().get("fixed"));
+        // The query keeps its templates
+        Assert.assertEquals("jvm_{type}_{attribute}_{attributeKey}", query.getmetricName());
+        Assert.assertEquals("{name}", query.getmetricLabels().get("pool"));
+    }
+    
+    @Test
+    public void testMetricType() throws ParseError {
+        JMXMetric m = new JMXMetric("jvm_gc_count[counter]<gc={name}>==java.lang:type=GarbageCollector,*/CollectionCount");
+        Assert.assertEquals("jvm_gc_count", m.getmetricName());
+        Assert.assertEquals("counter", m.getMetricType());
+        Assert.assertTrue(m.isCounter());
+        Assert.assertEquals("{name}", m.getmetricLabels().get("gc"));
+        Assert.assertEquals("java.lang:type=GarbageCollector,*", m.getmBeanName());
+        
+        m = new JMXMetric("[gauge]==java.lang:type=Threading/ThreadCount");
+        Assert.assertEquals(null, m.getmetricName());
+        Assert.assertEquals("gauge", m.getMetricType());
+    }
+    
+    @Test(expected = ParseError.class)
+    public void testUnknownMetricType() throws ParseError {
+        new JMXMetric("jvm_threads[histogram]==java.lang:type=Threading/ThreadCount");
+    }
+    
+    @Test
+    public void testPredicates() throws Exception {
+        JMXMetric m = new JMXMetric("jvm_pool<pool={name}>==java.lang:type=MemoryPool,*/Usage/used[Valid=true&@name=G1*&Usage~*]");
+        Assert.assertEquals("java.lang:type=MemoryPool,*", m.getmBeanName());
+        Assert.assertEquals("Usage", m.getAttribute());
+        Assert.assertEquals("used", m.getAttributeKey());
+        Assert.assertEquals("Valid=true&@name=G1*&Usage~*", m.getFilter());
+        Assert.assertNotNull(m.getFilterExp());
+        
+        Assert.assertNull(new JMXMetric("java.lang:type=Memory/HeapMemoryUsage/used").getFilterExp());
+        
+        try {
+            new JMXMetric("java.lang:type=Threading/ThreadCount[ThreadCount]");
+            Assert.fail("Predicate without an operator should not parse");
+        } catch (ParseError e) {
+            // Expected
+        }
+    }
 }
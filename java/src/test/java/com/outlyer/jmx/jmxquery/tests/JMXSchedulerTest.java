@@ -0,0 +1,174 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.ChangeStore;
+import com.outlyer.jmx.jmxquery.CounterStore;
+import com.outlyer.jmx.jmxquery.JMXConnectorPool;
+import com.outlyer.jmx.jmxquery.JMXScheduler;
+import com.outlyer.jmx.jmxquery.JMXTarget;
+import com.outlyer.jmx.jmxquery.TimeSeriesStore;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the scheduler against an RMI connector server for the JVM running the tests
+ * 
+ * @author dgildeh
+ */
+public class JMXSchedulerTest {
+    
+    private static final String SLOW_NAME = "com.outlyer.test:type=Slow";
+    
+    private static JMXConnectorServer server;
+    private static String url;
+    
+    public JMXSchedulerTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        mbeanServer.registerMBean(new Slow(), new ObjectName(SLOW_NAME));
+        server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"), 
+                null, mbeanServer);
+        server.start();
+        url = server.getAddress().toString();
+    }
+    
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.stop();
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(SLOW_NAME));
+    }
+    
+    private static JMXTarget group(String name, long interval, String queries) throws Exception {
+        JMXTarget group = new JMXTarget(url, null, null);
+        group.setName(name);
+        group.setInterval(interval);
+        group.addQueries(queries);
+        return group;
+    }
+    
+    private String run(final JMXScheduler scheduler, ArrayList<JMXTarget> groups, final long duration) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(duration);
+                } catch (InterruptedException e) {
+                    // Stop now
+                }
+                scheduler.stop();
+            }
+        };
+        stopper.start();
+        scheduler.run(groups, out, true, 60000);
+        synchronized (out) {
+            return bytes.toString("UTF-8");
+        }
+    }
+    
+    private static int count(String output, String group) {
+        int count = 0;
+        for (String line : output.split("\n")) {
+            if (line.startsWith("{\"group\" : \"" + group + "\"")) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    @Test
+    public void testGroupsPolledAtOwnIntervals() throws Exception {
+        JMXConnectorPool pool = new JMXConnectorPool(JMXConnectorPool.DEFAULT_IDLE_TIMEOUT);
+        ArrayList<JMXTarget> groups = new ArrayList<JMXTarget>();
+        groups.add(group("fast", 100, "java.lang:type=Threading/ThreadCount"));
+        groups.add(group("slow", 10000, "java.lang:type=ClassLoading/LoadedClassCount"));
+        
+        String output = run(new JMXScheduler(pool, 2), groups, 1500);
+        
+        Assert.assertTrue(output, count(output, "fast") >= 10);
+        Assert.assertTrue(output, count(output, "slow") <= 1);
+        Assert.assertTrue(output, output.contains("\"metrics\" : [{\"mBeanName\" : \"java.lang:type=Threading\""));
+    }
+    
+    @Test
+    public void testOverlappingPollsSkipped() throws Exception {
+        JMXConnectorPool pool = new JMXConnectorPool(JMXConnectorPool.DEFAULT_IDLE_TIMEOUT);
+        ArrayList<JMXTarget> groups = new ArrayList<JMXTarget>();
+        groups.add(group("slow", 50, SLOW_NAME + "/Value"));
+        
+        JMXScheduler scheduler = new JMXScheduler(pool, 2);
+        String output = run(scheduler, groups, 1000);
+        
+        // Each poll takes 300ms so most ticks find the last poll still running
+        Assert.assertTrue(output, count(output, "slow") <= 4);
+        Assert.assertTrue(scheduler.getSkipped() >= 8);
+    }
+    
+    @Test
+    public void testHistoryRecorded() throws Exception {
+        JMXConnectorPool pool = new JMXConnectorPool(JMXConnectorPool.DEFAULT_IDLE_TIMEOUT);
+        ArrayList<JMXTarget> groups = new ArrayList<JMXTarget>();
+        groups.add(group("threads", 100, "java.lang:type=Threading/ThreadCount;java.lang:type=Threading/DaemonThreadCount"));
+        
+        JMXScheduler scheduler = new JMXScheduler(pool, 2);
+        scheduler.setHistory(new TimeSeriesStore(10, 5));
+        run(scheduler, groups, 1000);
+        
+        // One series for each value polled
+        Assert.assertEquals(2, scheduler.getHistory().size());
+    }
+    
+    @Test
+    public void testOnlyChangesWritten() throws Exception {
+        JMXConnectorPool pool = new JMXConnectorPool(JMXConnectorPool.DEFAULT_IDLE_TIMEOUT);
+        ArrayList<JMXTarget> groups = new ArrayList<JMXTarget>();
+        groups.add(group("changes", 100, "java.lang:type=Runtime/VmName;java.lang:type=Runtime/Uptime"));
+        
+        JMXScheduler scheduler = new JMXScheduler(pool, 2);
+        scheduler.setChanges(new ChangeStore(3, CounterStore.DEFAULT_MAX_AGE));
+        String[] lines = run(scheduler, groups, 1000).split("\n");
+        
+        // Uptime changes every poll, the VM name is only written in keyframes, every third poll
+        Assert.assertTrue(lines.length >= 6);
+        int keyframes = 0;
+        for (int i = 0; i < lines.length; i++) {
+            boolean keyframe = lines[i].endsWith(", \"keyframe\" : true}");
+            Assert.assertEquals(lines[i], i % 3 == 0, keyframe);
+            Assert.assertEquals(lines[i], keyframe, lines[i].contains("\"VmName\""));
+            Assert.assertTrue(lines[i], lines[i].contains("\"Uptime\""));
+            if (keyframe) {
+                keyframes++;
+            }
+        }
+        Assert.assertTrue(keyframes >= 2);
+    }
+    
+    public interface SlowMBean {
+        public int getValue();
+    }
+    
+    public static class Slow implements SlowMBean {
+        public int getValue() {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                // Return early
+            }
+            return 1;
+        }
+    }
+}
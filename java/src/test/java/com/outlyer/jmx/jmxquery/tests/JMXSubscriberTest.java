@@ -0,0 +1,207 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.JMXConnector;
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.JMXSubscriber;
+import com.outlyer.jmx.jmxquery.MetricWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.AttributeChangeNotification;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests notifications are written as metrics and dropped when the queue is full
+ * 
+ * @author dgildeh
+ */
+public class JMXSubscriberTest {
+    
+    public JMXSubscriberTest() {
+    }
+    
+    @Test
+    public void testNotificationsWritten() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        Emitter first = new Emitter();
+        server.registerMBean(first, new ObjectName("com.outlyer.test:type=Emitter,name=first"));
+        
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("com.outlyer.test:type=Emitter,*/test.pause"));
+        queries.add(new JMXMetric("com.outlyer.test:type=Other,*"));
+        JMXSubscriber subscriber = new JMXSubscriber(new JMXConnector(server), 100, false);
+        Assert.assertEquals(1, subscriber.subscribe(queries));
+        
+        // Registered after subscribing
+        Emitter second = new Emitter();
+        server.registerMBean(second, new ObjectName("com.outlyer.test:type=Emitter,name=second"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (second.getListeners() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        
+        first.send(new Notification("test.pause.young", "first", 1, 1000, "young"));
+        first.send(new Notification("test.other", "first", 2, 1000, "filtered"));
+        second.send(pause(3, 25));
+        
+        Map<String, Object> values = new HashMap<String, Object>();
+        Assert.assertEquals(2, subscriber.drain(collect(values), 1000));
+        Assert.assertEquals("young", values.get("name=first/test.pause.young/null"));
+        Assert.assertEquals(25L, values.get("name=second/test.pause/info.duration"));
+        Assert.assertEquals("gc", values.get("name=second/test.pause/cause"));
+        Assert.assertEquals(3, values.size());
+        
+        // Keys and attribute changes
+        queries.clear();
+        queries.add(new JMXMetric("com.outlyer.test:type=Changes,*/*/info.duration"));
+        Emitter changes = new Emitter();
+        server.registerMBean(changes, new ObjectName("com.outlyer.test:type=Changes"));
+        subscriber.subscribe(queries);
+        changes.send(pause(4, 30));
+        changes.send(new AttributeChangeNotification("first", 5, 1000, "changed", "Count", "long", 1L, 2L));
+        
+        values.clear();
+        Assert.assertEquals(2, subscriber.drain(collect(values), 1000));
+        Assert.assertEquals(30L, values.get("type=Changes/test.pause/info.duration"));
+        Assert.assertEquals(1, values.size());
+        
+        subscriber.stop();
+        Assert.assertEquals(0, first.getListeners());
+        Assert.assertEquals(0, subscriber.getDropped());
+    }
+    
+    @Test
+    public void testRegistrationsFollowed() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("com.outlyer.test:type=Emitter,*/test.pause[@name=keep*]"));
+        JMXSubscriber subscriber = new JMXSubscriber(new JMXConnector(server), 100, false);
+        Assert.assertEquals(0, subscriber.subscribe(queries));
+        
+        // Registrations are handled in order, so once kept is subscribed skipped has been checked
+        Emitter skipped = new Emitter();
+        server.registerMBean(skipped, new ObjectName("com.outlyer.test:type=Emitter,name=skip"));
+        Emitter kept = new Emitter();
+        ObjectName keptName = new ObjectName("com.outlyer.test:type=Emitter,name=keep");
+        server.registerMBean(kept, keptName);
+        waitForListener(kept);
+        Assert.assertEquals(0, skipped.getListeners());
+        
+        // Subscribed again when registered again under the same name
+        server.unregisterMBean(keptName);
+        Emitter replaced = new Emitter();
+        server.registerMBean(replaced, keptName);
+        waitForListener(replaced);
+        
+        replaced.send(pause(1, 10));
+        Map<String, Object> values = new HashMap<String, Object>();
+        Assert.assertEquals(1, subscriber.drain(collect(values), 1000));
+        Assert.assertEquals(10L, values.get("name=keep/test.pause/info.duration"));
+        subscriber.stop();
+    }
+    
+    private static void waitForListener(Emitter emitter) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (emitter.getListeners() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, emitter.getListeners());
+    }
+    
+    @Test
+    public void testFullQueueDrops() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        Emitter emitter = new Emitter();
+        server.registerMBean(emitter, new ObjectName("com.outlyer.test:type=Emitter"));
+        
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("com.outlyer.test:type=Emitter"));
+        JMXSubscriber subscriber = new JMXSubscriber(new JMXConnector(server), 2, false);
+        subscriber.subscribe(queries);
+        
+        for (int i = 0; i < 5; i++) {
+            emitter.send(new Notification("test.event", "emitter", i, 1000, "event " + i));
+        }
+        
+        Map<String, Object> values = new HashMap<String, Object>();
+        Assert.assertEquals(2, subscriber.drain(collect(values), 1000));
+        Assert.assertEquals(5, subscriber.getReceived());
+        Assert.assertEquals(3, subscriber.getDropped());
+        subscriber.stop();
+    }
+    
+    private static Notification pause(long sequence, long duration) throws Exception {
+        CompositeType infoType = new CompositeType("Info", "Info", new String[] { "duration" },
+                new String[] { "duration" }, new OpenType<?>[] { SimpleType.LONG });
+        CompositeType pauseType = new CompositeType("Pause", "Pause", new String[] { "cause", "info" },
+                new String[] { "cause", "info" }, new OpenType<?>[] { SimpleType.STRING, infoType });
+        CompositeData info = new CompositeDataSupport(infoType, new String[] { "duration" }, 
+                new Object[] { duration });
+        Notification notification = new Notification("test.pause", "emitter", sequence, 1000, "pause");
+        notification.setUserData(new CompositeDataSupport(pauseType, new String[] { "cause", "info" },
+                new Object[] { "gc", info }));
+        return notification;
+    }
+    
+    /**
+     * Keeps each value by the last MBean name property, type and key
+     */
+    private static MetricWriter collect(final Map<String, Object> values) {
+        return new MetricWriter() {
+            public void begin() {
+            }
+            public void write(JMXMetric metric) {
+                String name = metric.getmBeanName().substring(metric.getmBeanName().lastIndexOf(',') + 1);
+                values.put(name.substring(name.indexOf(':') + 1) + "/" + metric.getAttribute() + "/" 
+                        + metric.getAttributeKey(), metric.getValue());
+            }
+            public void end() {
+            }
+        };
+    }
+    
+    public interface EmitterMBean {
+        int getListeners();
+    }
+    
+    public static class Emitter extends NotificationBroadcasterSupport implements EmitterMBean {
+        
+        private int listeners = 0;
+        
+        public synchronized int getListeners() {
+            return listeners;
+        }
+        
+        @Override
+        public synchronized void addNotificationListener(NotificationListener listener, 
+                NotificationFilter filter, Object handback) {
+            super.addNotificationListener(listener, filter, handback);
+            listeners++;
+        }
+        
+        @Override
+        public synchronized void removeNotificationListener(NotificationListener listener) 
+                throws ListenerNotFoundException {
+            super.removeNotificationListener(listener);
+            listeners--;
+        }
+        
+        public void send(Notification notification) {
+            sendNotification(notification);
+        }
+    }
+}
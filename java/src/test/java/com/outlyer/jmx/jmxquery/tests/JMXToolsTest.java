@@ -2,6 +2,7 @@ package com.outlyer.jmx.jmxquery.tests;
 
 import com.outlyer.jmx.jmxquery.tools.JMXTools;
 import com.outlyer.jmx.jmxquery.tools.LocalJMXConnection;
+import java.io.File;
 import java.util.ArrayList;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -52,4 +53,32 @@ public class JMXToolsTest {
     public void testGetLocalJMXConnection() {
         Assert.assertNotNull(JMXTools.getLocalJMXConnection("org.netbeans.Main"));
     }
+    
+    // Test a JVM without JMX enabled is found by name, has its agent started and is cached until it exits
+    @Test
+    public void testLocalJMXConnectionStartsAgent() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), 
+                Sleeper.class.getName()).start();
+        try {
+            // Wait for the JVM to be listed
+            String url = null;
+            for (int i = 0; i < 50 && url == null; i++) {
+                Thread.sleep(100);
+                url = JMXTools.getLocalJMXConnection(Sleeper.class.getName());
+            }
+            Assert.assertNotNull(url);
+            Assert.assertEquals(url, JMXTools.getLocalJMXConnection(Sleeper.class.getName()));
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+        Assert.assertNull(JMXTools.getLocalJMXConnection(Sleeper.class.getName()));
+    }
+    
+    public static class Sleeper {
+        public static void main(String[] args) throws InterruptedException {
+            Thread.sleep(60 * 1000);
+        }
+    }
 }
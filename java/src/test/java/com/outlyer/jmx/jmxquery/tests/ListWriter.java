@@ -0,0 +1,33 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.MetricWriter;
+import java.util.ArrayList;
+
+/**
+ * Test helper that collects the metrics written into a list, so tests can
+ * check what a writer passed on
+ *
+ * @author dgildeh
+ */
+public class ListWriter implements MetricWriter {
+
+    private final ArrayList<JMXMetric> metrics = new ArrayList<JMXMetric>();
+
+    public void begin() {
+    }
+
+    public void write(JMXMetric metric) {
+        metrics.add(metric);
+    }
+
+    public void end() {
+    }
+
+    /**
+     * @return  The metrics written so far
+     */
+    public ArrayList<JMXMetric> getMetrics() {
+        return metrics;
+    }
+}
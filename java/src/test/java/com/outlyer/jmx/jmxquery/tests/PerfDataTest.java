@@ -0,0 +1,91 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.JMXMetric;
+import com.outlyer.jmx.jmxquery.MetricWriter;
+import com.outlyer.jmx.jmxquery.tools.PerfDataCollector;
+import com.outlyer.jmx.jmxquery.tools.PerfDataFile;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests the JVM queries are answered from the test JVM's own hsperfdata file
+ * 
+ * @author dgildeh
+ */
+public class PerfDataTest {
+    
+    public PerfDataTest() {
+    }
+    
+    private static PerfDataFile open() throws Exception {
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        File file = PerfDataFile.find(pid);
+        Assume.assumeNotNull(file);
+        return new PerfDataFile(file);
+    }
+    
+    @Test
+    public void testCountersRead() throws Exception {
+        PerfDataFile perfData = open();
+        
+        Assert.assertTrue(perfData.getNames().contains("java.threads.live"));
+        Assert.assertTrue(perfData.getLong("java.threads.live") > 0);
+        Assert.assertTrue(perfData.getLong("sun.os.hrt.frequency") > 0);
+        Assert.assertNotNull(perfData.getString("sun.gc.collector.0.name"));
+        Assert.assertNull(perfData.getLong("sun.gc.collector.0.name"));
+        Assert.assertNull(perfData.getLong("no.such.counter"));
+    }
+    
+    @Test
+    public void testJVMQueries() throws Exception {
+        ArrayList<JMXMetric> queries = new ArrayList<JMXMetric>();
+        queries.add(new JMXMetric("java.lang:type=Threading/ThreadCount"));
+        queries.add(new JMXMetric("java.lang:type=Memory/HeapMemoryUsage"));
+        queries.add(new JMXMetric("java.lang:type=GarbageCollector,*/CollectionCount"));
+        queries.add(new JMXMetric("java.lang:type=ClassLoading/LoadedClassCount"));
+        queries.add(new JMXMetric("java.lang:type=OperatingSystem/ProcessCpuLoad"));
+        
+        final ArrayList<JMXMetric> results = new ArrayList<JMXMetric>();
+        new PerfDataCollector(open()).getMetrics(queries, new MetricWriter() {
+            public void begin() {
+            }
+            public void write(JMXMetric metric) {
+                results.add(metric);
+            }
+            public void end() {
+            }
+        });
+        
+        long threads = -1;
+        long loaded = -1;
+        int heap = 0;
+        HashSet<String> collectors = new HashSet<String>();
+        for (JMXMetric metric : results) {
+            Assert.assertNotEquals("OperatingSystem", metric.getObjectName().getKeyProperty("type"));
+            if (metric.getAttribute().equals("ThreadCount")) {
+                threads = (Long) metric.getValue();
+            } else if (metric.getAttribute().equals("LoadedClassCount")) {
+                loaded = (Long) metric.getValue();
+            } else if (metric.getAttribute().equals("HeapMemoryUsage")) {
+                heap++;
+            } else if (metric.getAttribute().equals("CollectionCount")) {
+                collectors.add(metric.getObjectName().getKeyProperty("name"));
+            }
+        }
+        
+        Assert.assertTrue(threads > 0);
+        Assert.assertTrue(loaded > 0);
+        Assert.assertEquals(3, heap);
+        
+        // Collectors are named the same as over JMX
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            Assert.assertTrue(collectors.toString(), collectors.contains(collector.getName()));
+        }
+    }
+}
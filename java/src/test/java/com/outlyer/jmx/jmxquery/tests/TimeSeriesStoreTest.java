@@ -0,0 +1,107 @@
+package com.outlyer.jmx.jmxquery.tests;
+
+import com.outlyer.jmx.jmxquery.CounterStore;
+import com.outlyer.jmx.jmxquery.TimeSeriesStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests samples are kept per series and summarised over windows of time
+ * 
+ * @author dgildeh
+ */
+public class TimeSeriesStoreTest {
+    
+    public TimeSeriesStoreTest() {
+    }
+    
+    @Test
+    public void testWindowStats() {
+        TimeSeriesStore store = new TimeSeriesStore(10, 10);
+        TimeSeriesStore.WindowStats stats = new TimeSeriesStore.WindowStats();
+        long series = CounterStore.hash("url", "java.lang:type=Memory", "HeapMemoryUsage", "used");
+        
+        store.append(series, 1000, 5);
+        store.append(series, 2000, 1);
+        store.append(series, 3000, 9);
+        store.append(series, 4000, 3);
+        
+        Assert.assertTrue(store.window(series, 2000, 3000, stats));
+        Assert.assertEquals(2, stats.getCount());
+        Assert.assertEquals(1, stats.getMin(), 0);
+        Assert.assertEquals(9, stats.getMax(), 0);
+        Assert.assertEquals(5, stats.getAvg(), 0);
+        Assert.assertEquals(9, stats.getLast(), 0);
+        Assert.assertEquals(3000, stats.getLastTime());
+        
+        Assert.assertFalse(store.window(series, 5000, 6000, stats));
+        Assert.assertFalse(store.window(CounterStore.hash("unknown"), 0, 6000, stats));
+    }
+    
+    @Test
+    public void testOldestSamplesOverwritten() {
+        TimeSeriesStore store = new TimeSeriesStore(10, 3);
+        TimeSeriesStore.WindowStats stats = new TimeSeriesStore.WindowStats();
+        long series = CounterStore.hash("url", "bean");
+        
+        for (int i = 1; i <= 5; i++) {
+            store.append(series, i * 1000, i);
+        }
+        
+        Assert.assertTrue(store.window(series, 0, 5000, stats));
+        Assert.assertEquals(3, stats.getCount());
+        Assert.assertEquals(3, stats.getMin(), 0);
+        Assert.assertEquals(5, stats.getLast(), 0);
+    }
+    
+    @Test
+    public void testLeastRecentSeriesEvicted() {
+        TimeSeriesStore store = new TimeSeriesStore(100, 2);
+        TimeSeriesStore.WindowStats stats = new TimeSeriesStore.WindowStats();
+        
+        for (int i = 0; i < 100; i++) {
+            store.append(CounterStore.hash("bean" + i), 1000 + i, i);
+        }
+        // bean0 stays by getting a new sample, bean1 is now the oldest
+        store.append(CounterStore.hash("bean0"), 2000, 0);
+        store.append(CounterStore.hash("new"), 3000, 1);
+        
+        Assert.assertEquals(100, store.size());
+        Assert.assertFalse(store.window(CounterStore.hash("bean1"), 0, 3000, stats));
+        Assert.assertTrue(store.window(CounterStore.hash("new"), 0, 3000, stats));
+        for (int i = 0; i < 100; i++) {
+            if (i != 1) {
+                Assert.assertTrue(store.window(CounterStore.hash("bean" + i), 0, 3000, stats));
+                Assert.assertEquals(i, stats.getLast(), 0);
+            }
+        }
+    }
+    
+    @Test
+    public void testEvictionFollowsLastSample() {
+        TimeSeriesStore store = new TimeSeriesStore(3, 1);
+        TimeSeriesStore.WindowStats stats = new TimeSeriesStore.WindowStats();
+        
+        store.append(CounterStore.hash("a"), 1000, 1);
+        store.append(CounterStore.hash("b"), 2000, 2);
+        store.append(CounterStore.hash("c"), 3000, 3);
+        // a then b get newer samples, leaving c the least recent
+        store.append(CounterStore.hash("a"), 4000, 1);
+        store.append(CounterStore.hash("b"), 5000, 2);
+        store.append(CounterStore.hash("d"), 6000, 4);
+        Assert.assertFalse(store.window(CounterStore.hash("c"), 0, 6000, stats));
+        
+        // Then a, the oldest left, and so on round every series
+        store.append(CounterStore.hash("e"), 7000, 5);
+        Assert.assertFalse(store.window(CounterStore.hash("a"), 0, 7000, stats));
+        for (int i = 0; i < 1000; i++) {
+            store.append(CounterStore.hash("series" + i), 8000 + i, i);
+        }
+        Assert.assertEquals(3, store.size());
+        for (int i = 997; i < 1000; i++) {
+            Assert.assertTrue(store.window(CounterStore.hash("series" + i), 0, 9000, stats));
+            Assert.assertEquals(i, stats.getLast(), 0);
+        }
+        Assert.assertFalse(store.window(CounterStore.hash("series996"), 0, 9000, stats));
+    }
+}
@@ -8,16 +8,21 @@
 import subprocess
 import os
 import json
+import queue
+import struct
+import threading
 from typing import List
 from enum import Enum
 import logging
 
 # Full Path to Jar
-JAR_PATH = os.path.dirname(os.path.realpath(__file__)) + '/JMXQuery-0.1.8.jar'
+JAR_PATH = os.path.dirname(os.path.realpath(__file__)) + '/JMXQuery-0.1.9.jar'
 # Default Java path
 DEFAULT_JAVA_PATH = 'java'
 # Default timeout for running jar in seconds
 DEFAULT_JAR_TIMEOUT = 10
+# Start of the jar's -binary output, magic bytes then format version
+BINARY_HEADER = b'JMXQ\x01'
 
 logger = logging.getLogger(__name__)
 
@@ -40,7 +45,8 @@ class JMXQuery:
                  value: object = None,
                  value_type: str = None,
                  metric_name: str = None,
-                 metric_labels: dict = None):
+                 metric_labels: dict = None,
+                 metric_type: MetricType = None):
 
         self.mBeanName = mBeanName
         self.attribute = attribute
@@ -49,6 +55,10 @@ class JMXQuery:
         self.value_type = value_type
         self.metric_name = metric_name
         self.metric_labels = metric_labels
+        self.metric_type = metric_type
+        # Change and per second rate of counters since the last query, only set by persistent connections
+        self.delta = None
+        self.rate = None
 
     def to_query_string(self) -> str:
         """
@@ -56,13 +66,17 @@ class JMXQuery:
 
         :return:    The query string to find the MBean in format:
 
-                        {mBeanName}/{attribute}/{attributeKey}
+                        {metricName}[{metricType}]<{metricLabels}>=={mBeanName}/{attribute}/{attributeKey}
 
+                    where everything before == is optional.
                     Example: java.lang:type=Memory/HeapMemoryUsage/init
         """
         query = ""
-        if self.metric_name:
-            query += self.metric_name
+        if self.metric_name or self.metric_type:
+            if self.metric_name:
+                query += self.metric_name
+            if self.metric_type:
+                query += "[" + self.metric_type.value + "]"
 
             if ((self.metric_labels != None) and (len(self.metric_labels) > 0)):
                 query += "<"
@@ -115,7 +129,8 @@ class JMXConnection(object):
     The main class that connects to the JMX endpoint via a local JAR to run queries
     """
 
-    def __init__(self, connection_uri: str, jmx_username: str = None, jmx_password: str = None, java_path: str = DEFAULT_JAVA_PATH):
+    def __init__(self, connection_uri: str, jmx_username: str = None, jmx_password: str = None, java_path: str = DEFAULT_JAVA_PATH,
+                 persistent: bool = False, binary: bool = False):
         """
         Creates instance of JMXQuery set to a specific connection uri for the JMX endpoint
 
@@ -124,11 +139,135 @@ class JMXConnection(object):
         :param jmx_password:    (Optional) Password if JMX endpoint is secured
         :param java_path:       (Optional) Provide an alternative Java path on the machine to run the JAR.
                                 Default is 'java' which will use the machines default JVM
+        :param persistent:      (Optional) Keep one JVM running in -batch mode and send every query to it
+                                instead of starting a new JVM for each query. Call close() when done.
+        :param binary:          (Optional) Read the jar's compact -binary output instead of JSON, which is
+                                faster for large queries. Not used with persistent, which always uses JSON.
         """
         self.connection_uri = connection_uri
         self.jmx_username = jmx_username
         self.jmx_password = jmx_password
         self.java_path = java_path
+        self.persistent = persistent
+        self.binary = binary
+        self.__process = None
+        self.__responses = None
+        self.__lock = threading.Lock()
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, exc_type, exc_value, traceback):
+        self.close()
+
+    def __command(self, output_format: str = "-json") -> List[str]:
+        """
+        Build the command to run the JAR, without the queries
+
+        :param output_format:   The output format option to pass to the JAR
+        :return:                The command array to run via subprocess
+        """
+        command = [self.java_path, '-jar', JAR_PATH, '-url', self.connection_uri, output_format]
+        if (self.jmx_username):
+            command.extend(["-u", self.jmx_username, "-p", self.jmx_password])
+        return command
+
+    def __start_batch(self):
+        """
+        Start the JAR in -batch mode with a thread reading its framed responses
+        """
+        command = self.__command() + ["-batch"]
+        logger.debug("Starting batch process: " + str(command))
+        self.__process = subprocess.Popen(command,
+                                          stdin=subprocess.PIPE,
+                                          stdout=subprocess.PIPE,
+                                          stderr=subprocess.DEVNULL)
+        self.__responses = queue.Queue()
+        reader = threading.Thread(target=self.__read_responses,
+                                  args=(self.__process.stdout, self.__responses),
+                                  daemon=True)
+        reader.start()
+
+    @staticmethod
+    def __read_responses(stdout, responses: queue.Queue):
+        """
+        Read each response frame (length line then payload) from the batch process until it exits.
+        None is queued when the process output ends.
+        """
+        try:
+            while True:
+                header = stdout.readline()
+                if not header:
+                    break
+                payload = stdout.read(int(header))
+                if len(payload) < int(header):
+                    break
+                responses.put(payload.decode('utf-8'))
+        except (ValueError, OSError) as err:
+            logger.error("Error reading from JMX batch process: " + str(err))
+        responses.put(None)
+
+    def close(self):
+        """
+        Stop the batch process if one is running
+        """
+        with self.__lock:
+            self.__stop_batch()
+
+    def __stop_batch(self):
+        if self.__process is not None:
+            try:
+                self.__process.stdin.close()
+            except OSError:
+                pass
+            try:
+                self.__process.wait(timeout=1)
+            except subprocess.TimeoutExpired:
+                self.__process.kill()
+            self.__process = None
+            self.__responses = None
+
+    def __run_batch(self, queries: List[JMXQuery], timeout) -> List[JMXQuery]:
+        """
+        Send the queries to the batch process, starting it if needed, and restarting it once
+        if it has died
+
+        :param queries: The queries to run
+        :param timeout: Seconds to wait for the response
+        :return:        The metrics found
+        """
+        request = ";".join(query.to_query_string() for query in queries) + "\n"
+
+        with self.__lock:
+            for attempt in range(2):
+                if self.__process is None or self.__process.poll() is not None:
+                    self.__stop_batch()
+                    self.__start_batch()
+                try:
+                    self.__process.stdin.write(request.encode('utf-8'))
+                    self.__process.stdin.flush()
+                    jsonOutput = self.__responses.get(timeout=timeout)
+                except BrokenPipeError:
+                    jsonOutput = None
+                except queue.Empty:
+                    # The response may still arrive later so the process can't be reused
+                    logger.error("Error calling JMX, Timeout of " + str(timeout) + " Expired")
+                    self.__stop_batch()
+                    return []
+
+                if jsonOutput is not None:
+                    break
+                logger.error("JMX batch process exited, restarting")
+                self.__stop_batch()
+            else:
+                raise RuntimeError("JMX batch process exited while running query")
+
+        logger.debug("JSON Output Received: " + jsonOutput)
+        if jsonOutput.startswith('{'):
+            error = json.loads(jsonOutput)
+            logger.error("Error calling JMX: " + error['message'])
+            raise RuntimeError(error['error'] + ": " + error['message'])
+        return self.__load_from_json(jsonOutput)
 
     def __run_jar(self, queries: List[JMXQuery], timeout) -> List[JMXQuery]:
         """
@@ -138,9 +277,7 @@ class JMXConnection(object):
         :return:        The full command array to run via subprocess
         """
 
-        command =  [self.java_path, '-jar', JAR_PATH, '-url', self.connection_uri, "-json"]
-        if (self.jmx_username):
-            command.extend(["-u", self.jmx_username, "-p", self.jmx_password])
+        command = self.__command("-binary" if self.binary else "-json")
 
         queryString = ""
         for query in queries:
@@ -157,17 +294,90 @@ class JMXConnection(object):
                                     timeout=timeout,
                                     check=True)
 
+            if self.binary:
+                logger.debug("Binary Output Received: " + str(len(output.stdout)) + " bytes")
+                return self.__load_from_binary(output.stdout)
             jsonOutput = output.stdout.decode('utf-8')
         except subprocess.TimeoutExpired as err:
-            logger.error("Error calling JMX, Timeout of " + str(err.timeout) + " Expired: " + err.output.decode('utf-8'))
+            logger.error("Error calling JMX, Timeout of " + str(err.timeout) + " Expired: " + 
+                         (err.output or b'').decode('utf-8', 'replace'))
         except subprocess.CalledProcessError as err:
-            logger.error("Error calling JMX: " + err.output.decode('utf-8'))
+            logger.error("Error calling JMX: " + err.output.decode('utf-8', 'replace'))
             raise err
 
         logger.debug("JSON Output Received: " + jsonOutput)
         metrics = self.__load_from_json(jsonOutput)
         return metrics
 
+    @staticmethod
+    def __load_from_binary(output: bytes) -> List[JMXQuery]:
+        """
+        Loads the list of returned metrics from the JAR's -binary output. See BinaryMetricWriter in the
+        JAR for the format.
+
+        :param output:  The bytes returned from the command line
+        :return:        An array of JMXQuerys
+        """
+        if not output.startswith(BINARY_HEADER):
+            raise ValueError("Unknown JMXQuery binary output format")
+
+        strings = []
+        metrics = []
+
+        def string(index):
+            # -1 is null for every string reference
+            return strings[index] if index >= 0 else None
+
+        offset = len(BINARY_HEADER)
+        while offset < len(output):
+            record_type, length = struct.unpack_from('>BI', output, offset)
+            offset += 5
+            end = offset + length
+            if record_type == 1:
+                strings.append(output[offset:end].decode('utf-8'))
+            elif record_type == 2:
+                metric_name, label_count = struct.unpack_from('>iH', output, offset)
+                offset += 6
+                metric_labels = None
+                if metric_name >= 0:
+                    metric_labels = {}
+                    for key, value in struct.iter_unpack('>ii', output[offset:offset + label_count * 8]):
+                        metric_labels[string(key)] = string(value)
+                offset += label_count * 8
+                mBeanName, attribute, attributeKey, attributeType, value_type = \
+                    struct.unpack_from('>iiiiB', output, offset)
+                offset += 17
+                value = None
+                if value_type == 1:
+                    value = struct.unpack_from('>q', output, offset)[0]
+                elif value_type == 2:
+                    value = struct.unpack_from('>d', output, offset)[0]
+                elif value_type == 3:
+                    value = output[offset] != 0
+                elif value_type == 4:
+                    value = output[offset:end].decode('utf-8')
+                elif value_type == 5:
+                    logger.error("Error running query " + str(string(mBeanName)) + ": " +
+                                 output[offset:end].decode('utf-8'))
+                    offset = end
+                    continue
+                metrics.append(JMXQuery(string(mBeanName),
+                                        string(attribute),
+                                        string(attributeKey),
+                                        value,
+                                        string(attributeType),
+                                        string(metric_name),
+                                        metric_labels))
+            elif record_type == 3:
+                break
+            elif record_type == 4:
+                # The whole request failed part way through, the message is "error: message"
+                error = output[offset:end].decode('utf-8')
+                logger.error("Error calling JMX: " + error)
+                raise RuntimeError(error)
+            offset = end
+        return metrics
+
     def __load_from_json(self, jsonOutput: str) -> List[JMXQuery]:
         """
         Loads the list of returned metrics from JSON response
@@ -178,6 +388,14 @@ class JMXConnection(object):
         jsonMetrics = json.loads(jsonOutput)
         metrics = []
         for jsonMetric in jsonMetrics:
+            if 'error' in jsonMetric and 'mBeanName' not in jsonMetric:
+                # The whole request failed part way through, see JSONWriter.fail in the JAR
+                logger.error("Error calling JMX: " + jsonMetric['message'])
+                raise RuntimeError(jsonMetric['error'] + ": " + jsonMetric['message'])
+            if 'error' in jsonMetric:
+                # The query failed on its own, the other queries' metrics are still returned
+                logger.error("Error running query " + jsonMetric['mBeanName'] + ": " + jsonMetric['error'])
+                continue
             mBeanName = jsonMetric['mBeanName']
             attribute = jsonMetric['attribute']
             attributeType = jsonMetric['attributeType']
@@ -193,8 +411,15 @@ class JMXConnection(object):
             value = None
             if 'value' in jsonMetric:
                 value = jsonMetric['value']
-
-            metrics.append(JMXQuery(mBeanName, attribute, attributeKey, value, attributeType, metric_name, metric_labels))
+            metric_type = None
+            if 'metricType' in jsonMetric:
+                metric_type = MetricType(jsonMetric['metricType'])
+
+            metric = JMXQuery(mBeanName, attribute, attributeKey, value, attributeType, metric_name, metric_labels,
+                              metric_type)
+            metric.delta = jsonMetric.get('delta')
+            metric.rate = jsonMetric.get('rate')
+            metrics.append(metric)
         return metrics
 
     def query(self, queries: List[JMXQuery], timeout=DEFAULT_JAR_TIMEOUT) -> List[JMXQuery]:
@@ -204,4 +429,6 @@ class JMXConnection(object):
         :param queries:     A list of JMXQuerys to query the JVM for
         :return:            A list of JMXQuerys found in the JVM with their current values
         """
+        if self.persistent:
+            return self.__run_batch(queries, timeout)
         return self.__run_jar(queries, timeout)
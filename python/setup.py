@@ -21,8 +21,8 @@ with open(path.join(here, 'README.md'), encoding='utf-8') as f:
 setup(
   name = 'jmxquery',
   packages = ['jmxquery'],
-  version = '0.6.0',
-  description = 'A JMX Interface for Python to Query runtime metrics in a JVM',
+  version = '0.7.0',
+  description = 'A JMX Interface for Python to Query runtime metrics in a JVM (Java 8 or above)',
   long_description=long_description,
   long_description_content_type="text/markdown",
   author = 'David Gildeh',